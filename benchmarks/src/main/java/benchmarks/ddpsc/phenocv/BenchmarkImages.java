@@ -0,0 +1,212 @@
+package benchmarks.ddpsc.phenocv;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import src.ddpsc.phenocv.algorithms.ColorIsolation;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.computer_vision.ColorSpace;
+import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.computer_vision.Histogram;
+import src.ddpsc.phenocv.computer_vision.HistogramPartition;
+import src.ddpsc.phenocv.utility.OpenCV;
+import src.ddpsc.phenocv.utility.Tuple;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Images and trained models shared by the benchmarks.
+ *
+ * Benchmarks run against either a bundled plant image from resources/images or a synthetic
+ * image of dark green blobs on a noisy light background, scaled to the resolution being
+ * measured. The bundled images are found under the directory named by the phenocv.root
+ * system property, or else the working directory or its parent.
+ */
+final class BenchmarkImages {
+
+    /** Image sources a benchmark can be parameterized with. */
+    static final String BUNDLED = "bundled";
+    static final String SYNTHETIC = "synthetic";
+
+    private static final String BUNDLED_IMAGE = "color_isolation_test" + File.separator + "test_plant_(1).png";
+    private static final String TRAINING_DIRECTORY = "color_isolation_training";
+    private static final String TRAIN_PREFIX = "train_plant_(";
+    private static final String TRAIN_IMAGE_SUFFIX = ").png";
+    private static final String TRAIN_MASK_SUFFIX = ")_mask.png";
+    private static final int TRAINING_SIZE = 14; // numbering starts at 1, ends on this value
+
+    private static final long SYNTHETIC_SEED = 42;
+    private static final int SYNTHETIC_PLANTS = 12;
+    private static final int SYNTHETIC_NOISE = 24;
+
+    static {
+        OpenCV.load();
+    }
+
+    private BenchmarkImages() {}
+
+
+    /// ======================================================================
+    /// Images
+    /// ======================================================================
+
+    /**
+     * Returns an image from the supplied source at the supplied resolution.
+     *
+     * @param source        {@link #BUNDLED} or {@link #SYNTHETIC}
+     * @param resolution    resolution as WIDTHxHEIGHT, for example 1227x1028
+     * @return              new image, must be released by the caller
+     */
+    static ColorImage image(String source, String resolution) {
+        Size size = parseResolution(resolution);
+
+        if (SYNTHETIC.equals(source))
+            return syntheticImage((int) size.width, (int) size.height);
+        else if (BUNDLED.equals(source))
+            return resized(new ColorImage(imagesFile(BUNDLED_IMAGE)), size);
+        else
+            throw new IllegalArgumentException("Unknown image source " + source + ".");
+    }
+
+    /**
+     * Returns a histogram of every bundled training pair with the supplied number of bins
+     * in HSV, the color space the command line tool uses.
+     *
+     * @param numberBins    bins per channel of the histogram
+     * @return              trained histogram, must be released by the caller
+     */
+    static Histogram trainedHistogram(int numberBins) {
+        Histogram histogram = Histogram.blank(new HistogramPartition(ColorSpace.HSV, numberBins));
+
+        for (Tuple<String, String> pair : trainingPairs()) {
+            ColorImage image = new ColorImage(pair.item1);
+            GrayImage mask = new GrayImage(pair.item2);
+
+            histogram.addImageData(image, mask);
+
+            image.release();
+            mask.release();
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Returns a color isolation trained on every bundled training pair with the supplied
+     * number of bins in HSV.
+     *
+     * @param numberBins    bins per channel of the trained histogram
+     * @return              trained color isolation, must be released by the caller
+     */
+    static ColorIsolation trainedColorIsolation(int numberBins) {
+        ColorIsolation colorIsolation = new ColorIsolation(new HistogramPartition(ColorSpace.HSV, numberBins));
+        colorIsolation.trainByFiles(trainingPairs(), Runtime.getRuntime().availableProcessors());
+
+        return colorIsolation;
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    private static List<Tuple<String, String>> trainingPairs() {
+        List<Tuple<String, String>> trainingPairs = new ArrayList<Tuple<String, String>>();
+        for (int i = 1; i <= TRAINING_SIZE; i++) {
+            File image = new File(imagesFile(TRAINING_DIRECTORY + File.separator + TRAIN_PREFIX + i + TRAIN_IMAGE_SUFFIX));
+            File mask = new File(imagesFile(TRAINING_DIRECTORY + File.separator + TRAIN_PREFIX + i + TRAIN_MASK_SUFFIX));
+            if (image.exists() && mask.exists())
+                trainingPairs.add(new Tuple<String, String>(image.getPath(), mask.getPath()));
+        }
+
+        if (trainingPairs.isEmpty())
+            throw new IllegalStateException("No training pairs found in " + imagesFile(TRAINING_DIRECTORY) + ".");
+
+        return trainingPairs;
+    }
+
+    private static Size parseResolution(String resolution) {
+        String dimensions[] = resolution.split("x");
+        if (dimensions.length != 2)
+            throw new IllegalArgumentException("Resolution must be WIDTHxHEIGHT, not " + resolution + ".");
+
+        return new Size(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+    }
+
+    private static ColorImage resized(ColorImage image, Size size) {
+        if (image.numberPixels() == 0)
+            throw new IllegalStateException("Unable to load the bundled benchmark image.");
+
+        if (image.size().equals(size))
+            return image;
+
+        Mat resizedMatrix = new Mat();
+        Imgproc.resize(image.borrowConversion(ColorSpace.BGR), resizedMatrix, size, 0, 0, Imgproc.INTER_AREA);
+        image.returnConversion(ColorSpace.BGR);
+
+        byte pixels[] = new byte[(int) resizedMatrix.total() * 3];
+        resizedMatrix.get(0, 0, pixels);
+        resizedMatrix.release();
+        image.release();
+
+        ColorImage resizedImage = new ColorImage((int) size.width, (int) size.height);
+        resizedImage.setPixels(pixels, (int) size.width);
+
+        return resizedImage;
+    }
+
+    private static ColorImage syntheticImage(int width, int height) {
+        Random random = new Random(SYNTHETIC_SEED);
+        byte pixels[] = new byte[width * height * 3];
+
+        // Light background with noise, like the imaging booth behind the bundled plants
+        for (int pixel = 0; pixel < pixels.length; pixel += 3) {
+            int noise = random.nextInt(SYNTHETIC_NOISE);
+            pixels[pixel]     = (byte) (215 + noise);
+            pixels[pixel + 1] = (byte) (218 + noise);
+            pixels[pixel + 2] = (byte) (216 + noise);
+        }
+
+        // Plants of varying size and shade around the bundled plants' average color,
+        // placed the same way every time
+        int maxRadius = Math.max(4, Math.min(width, height) / 10);
+        for (int plant = 0; plant < SYNTHETIC_PLANTS; plant++) {
+            int centerX = random.nextInt(width);
+            int centerY = random.nextInt(height);
+            int radius = maxRadius / 4 + random.nextInt(maxRadius);
+            int shade = random.nextInt(SYNTHETIC_NOISE);
+
+            for (int y = Math.max(0, centerY - radius); y < Math.min(height, centerY + radius); y++)
+                for (int x = Math.max(0, centerX - radius); x < Math.min(width, centerX + radius); x++) {
+                    int dx = x - centerX, dy = y - centerY;
+                    if (dx * dx + dy * dy > radius * radius)
+                        continue;
+
+                    int noise = random.nextInt(SYNTHETIC_NOISE);
+                    int pixel = 3 * (y * width + x);
+                    pixels[pixel]     = (byte) (22 + shade + noise / 2);
+                    pixels[pixel + 1] = (byte) (70 + shade + noise);
+                    pixels[pixel + 2] = (byte) (46 + shade + noise / 2);
+                }
+        }
+
+        ColorImage image = new ColorImage(width, height);
+        image.setPixels(pixels, width);
+
+        return image;
+    }
+
+    private static String imagesFile(String relativePath) {
+        String root = System.getProperty("phenocv.root");
+        if (root == null) {
+            File workingDirectory = new File(System.getProperty("user.dir"));
+            root = new File(workingDirectory, "resources").exists()
+                    ? workingDirectory.getPath()
+                    : workingDirectory.getParent();
+        }
+
+        return root + File.separator + "resources" + File.separator + "images" + File.separator + relativePath;
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks.ddpsc.phenocv;
+
+import org.openjdk.jmh.annotations.*;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ColorImage#cvAsHSVMatrix()}, the BGR to HSV conversion every back-projection
+ * starts with.
+ *
+ * Conversions are cached on the image, so every invocation converts a fresh copy. The copy is
+ * made outside the measured call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColorImageBenchmark {
+
+    @Param({"614x514", "1227x1028", "2454x2056"})
+    public String resolution;
+
+    @Param({BenchmarkImages.BUNDLED, BenchmarkImages.SYNTHETIC})
+    public String source;
+
+    private ColorImage image;
+    private ColorImage converted;
+
+
+    @Setup(Level.Trial)
+    public void loadImage() {
+        image = BenchmarkImages.image(source, resolution);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyImage() {
+        converted = (ColorImage) image.copy();
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseCopy() {
+        converted.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void releaseImage() {
+        image.release();
+    }
+
+
+    @Benchmark
+    public Object cvAsHSVMatrix() {
+        return converted.cvAsHSVMatrix();
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks.ddpsc.phenocv;
+
+import org.openjdk.jmh.annotations.*;
+import src.ddpsc.phenocv.algorithms.ColorIsolation;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole {@link ColorIsolation#fastIsolation(ColorImage)} call, trained on the
+ * bundled training pairs.
+ *
+ * Isolation works in place, so every invocation isolates a fresh copy of the image. The copy
+ * is made outside the measured call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColorIsolationBenchmark {
+
+    @Param({"614x514", "1227x1028", "2454x2056"})
+    public String resolution;
+
+    @Param({"25", "100", "255"})
+    public int numberBins;
+
+    @Param({BenchmarkImages.BUNDLED, BenchmarkImages.SYNTHETIC})
+    public String source;
+
+    private ColorIsolation colorIsolation;
+    private ColorImage image;
+    private ColorImage isolated;
+
+
+    @Setup(Level.Trial)
+    public void train() {
+        image = BenchmarkImages.image(source, resolution);
+        colorIsolation = BenchmarkImages.trainedColorIsolation(numberBins);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyImage() {
+        isolated = (ColorImage) image.copy();
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseCopy() {
+        isolated.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        image.release();
+        colorIsolation.release();
+    }
+
+
+    @Benchmark
+    public ColorImage fastIsolation() {
+        colorIsolation.fastIsolation(isolated);
+        return isolated;
+    }
+}
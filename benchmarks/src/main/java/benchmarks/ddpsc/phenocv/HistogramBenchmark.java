@@ -0,0 +1,70 @@
+package benchmarks.ddpsc.phenocv;
+
+import org.openjdk.jmh.annotations.*;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.computer_vision.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Histogram#backProjectionOf(ColorImage)} with a histogram trained on the
+ * bundled training pairs.
+ *
+ * Every invocation back-projects onto a fresh copy of the image, so the measured time
+ * includes the color conversion, as it does for an image seen for the first time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistogramBenchmark {
+
+    @Param({"614x514", "1227x1028", "2454x2056"})
+    public String resolution;
+
+    @Param({"25", "100", "255"})
+    public int numberBins;
+
+    @Param({BenchmarkImages.BUNDLED, BenchmarkImages.SYNTHETIC})
+    public String source;
+
+    private Histogram histogram;
+    private ColorImage image;
+    private ColorImage projected;
+    private GrayImage backProjection;
+
+
+    @Setup(Level.Trial)
+    public void train() {
+        image = BenchmarkImages.image(source, resolution);
+        histogram = BenchmarkImages.trainedHistogram(numberBins);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyImage() {
+        projected = (ColorImage) image.copy();
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseCopy() {
+        projected.release();
+        if (backProjection != null)
+            backProjection.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        image.release();
+        histogram.release();
+    }
+
+
+    @Benchmark
+    public GrayImage backProjectionOf() {
+        backProjection = histogram.backProjectionOf(projected);
+        return backProjection;
+    }
+}
@@ -0,0 +1,95 @@
+package benchmarks.ddpsc.phenocv;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import src.ddpsc.phenocv.computer_vision.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the shapes of a mask with {@link ShapeCollection#FromImage(GrayImage)} and
+ * averaging their color with {@link Shape#averagePixelOf(Image)}.
+ *
+ * The mask is the median filtered, thresholded back-projection of a histogram trained on the
+ * bundled training pairs, the same mask the debug isolation finds shapes in. The number of
+ * bins changes how fragmented that mask is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShapeBenchmark {
+
+    private static final int MEDIAN_STRENGTH = 5;
+
+    @Param({"614x514", "1227x1028", "2454x2056"})
+    public String resolution;
+
+    @Param({"25", "100", "255"})
+    public int numberBins;
+
+    @Param({BenchmarkImages.BUNDLED, BenchmarkImages.SYNTHETIC})
+    public String source;
+
+    private ColorImage image;
+    private GrayImage mask;
+    private ShapeCollection shapes;
+
+    // Per invocation, findContours writes over the mask it is given
+    private GrayImage contouredMask;
+    private ShapeCollection foundShapes;
+
+
+    @Setup(Level.Trial)
+    public void findMask() {
+        image = BenchmarkImages.image(source, resolution);
+
+        Histogram histogram = BenchmarkImages.trainedHistogram(numberBins);
+        ColorImage projected = (ColorImage) image.copy();
+        mask = histogram.backProjectionOf(projected);
+        mask.threshold();
+        mask.medianFilter(MEDIAN_STRENGTH);
+        projected.release();
+        histogram.release();
+
+        shapes = ShapeCollection.FromImage((GrayImage) mask.copy());
+        shapes.shapes();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyMask() {
+        contouredMask = (GrayImage) mask.copy();
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseCopy() {
+        contouredMask.release();
+        if (foundShapes != null) {
+            foundShapes.release();
+            foundShapes = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        shapes.release();
+        mask.release();
+        image.release();
+    }
+
+
+    @Benchmark
+    public ShapeCollection shapeCollectionFromImage() {
+        foundShapes = ShapeCollection.FromImage(contouredMask);
+        foundShapes.shapes();
+        return foundShapes;
+    }
+
+    @Benchmark
+    public void averagePixelOf(Blackhole blackhole) {
+        for (Shape shape : shapes.shapes())
+            blackhole.consume(shape.averagePixelOf(image));
+    }
+}
@@ -0,0 +1,93 @@
+package src.ddpsc.phenocv.algorithms;
+
+import org.opencv.core.Rect;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.computer_vision.ColorSpace;
+import src.ddpsc.phenocv.computer_vision.ColorStatistics;
+import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.computer_vision.Shape;
+import src.ddpsc.phenocv.utility.ReleaseScope;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
+
+import java.util.List;
+
+/**
+ * Measures the color of the plants kept by an {@link Isolation}, in the image they were
+ * isolated from, to track stress through greenness and hue.
+ *
+ * Each plant, and the plant material of the image as a whole, gets:
+ *      meanBlue, meanGreen, meanRed    average color, 0 to 255
+ *      excessGreen                     excess green index of the average color, 2g - r - b
+ *      hue0, hue20, ... hue340         fraction of the pixels whose hue, in degrees, falls in
+ *                                      the 20 degree bin starting at the number
+ * Plants are the shapes of {@link Isolation#shapes()}, numbered as {@link Morphology}
+ * numbers them, and the image as a whole is what the isolation's mask shows.
+ *
+ * The image is measured before anything is done to it, while it's still in memory, so nothing
+ * is decoded again. Only the part of it bounding the plants is converted to HSV, once, and
+ * that conversion is shared by every plant.
+ */
+public final class ColorAnalysis {
+
+    // Plant number standing for the image as a whole
+    private static final int WHOLE_IMAGE = -1;
+
+    private ColorAnalysis() {}
+
+    /**
+     * Measures the color of the plants of the supplied isolation of the image into the
+     * supplied measurements.
+     *
+     * @param image             image the isolation was made from, unmasked
+     * @param isolation         isolation to measure the plants of
+     * @param measurements      measurements to record the traits in
+     */
+    public static void measure(ColorImage image, Isolation isolation, Measurements measurements) {
+        List<Shape> plants = isolation.shapes().shapes(); // owned by the isolation, do not release
+        if (isolation.isEmpty()) {
+            putColor(measurements, WHOLE_IMAGE, ColorStatistics.of(image, isolation.mask(), new Rect()));
+            return;
+        }
+
+        // Only the plants' part of the image is converted, once, timed as a color conversion
+        Rect region = isolation.boundingBox();
+        try (ReleaseScope scope = new ReleaseScope()) {
+            ColorImage plantsPart = scope.add((ColorImage) image.crop(region));
+            GrayImage plantsMask = scope.add((GrayImage) isolation.mask().crop(region));
+            plantsPart.borrowConversion(ColorSpace.HSV); // kept until every plant is measured
+            try {
+                long start = StageTimer.start();
+                for (int plant = 0; plant < plants.size(); plant++)
+                    putColor(measurements, plant, plants.get(plant).colorStatisticsOf(plantsPart, region.tl()));
+
+                putColor(measurements, WHOLE_IMAGE, ColorStatistics.of(plantsPart, plantsMask, plantsPart.rectangle()));
+                StageTimer.record(Stage.COLOR_ANALYSIS, start);
+            }
+            finally {
+                plantsPart.returnConversion(ColorSpace.HSV);
+            }
+        }
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+
+    private static void putColor(Measurements measurements, int plant, ColorStatistics color) {
+        put(measurements, plant, "meanBlue", color.meanBlue());
+        put(measurements, plant, "meanGreen", color.meanGreen());
+        put(measurements, plant, "meanRed", color.meanRed());
+        put(measurements, plant, "excessGreen", color.excessGreen());
+        for (int bin = 0; bin < ColorStatistics.HUE_BINS; bin++)
+            put(measurements, plant, "hue" + bin * ColorStatistics.HUE_BIN_DEGREES, color.hueFraction(bin));
+    }
+
+    private static void put(Measurements measurements, int plant, String trait, double value) {
+        if (plant == WHOLE_IMAGE)
+            measurements.putImageTrait(trait, value);
+        else
+            measurements.putPlantTrait(plant, trait, value);
+    }
+}
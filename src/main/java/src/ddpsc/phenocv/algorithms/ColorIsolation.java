@@ -2,12 +2,22 @@ package src.ddpsc.phenocv.algorithms;
 
 import src.ddpsc.phenocv.computer_vision.HistogramPartition;
 import src.ddpsc.phenocv.computer_vision.*;
+import src.ddpsc.phenocv.utility.Directory;
 import src.ddpsc.phenocv.utility.Lists;
+import src.ddpsc.phenocv.utility.ReleaseContainer;
+import src.ddpsc.phenocv.utility.ReleaseScope;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
 import src.ddpsc.phenocv.utility.Tuple;
 
-import java.io.File;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author cjmcentee
@@ -15,44 +25,92 @@ import java.util.List;
 public class ColorIsolation implements Releasable {
 
     private static final int MEDIAN_STRENGTH = 5;
+    private static final int MIN_SHAPE_PIXELS = 250;
+
+    // Saved model file format
+    private static final int MODEL_MAGIC = 0x5043564D; // "PCVM"
+    private static final int MODEL_VERSION = 1;
+    private static final String HASH_ALGORITHM = "SHA-256";
 
     boolean trained = false;
     HistogramPartition histogramPartition;
     Histogram histogram;
+    HistogramLookupTable lookupTable;
+    MessageDigest trainingDigest;
+    String loadedHash; // hash a loaded model was saved with, until it is trained further
 
     public ColorIsolation(HistogramPartition histogramPartition) {
         this.histogramPartition = histogramPartition;
         histogram = Histogram.blank(histogramPartition);
+        trainingDigest = newDigest();
     }
 
     public void train(List<Tuple<ColorImage, GrayImage>> trainingImages) {
-        if (trainingImages.size() == 0)
-            return;
+        train(trainingImages, 1);
+    }
 
-        for (Tuple<ColorImage, GrayImage> trainingPair : trainingImages) {
-            ColorImage image = trainingPair.item1;
-            GrayImage mask = trainingPair.item2;
+    /**
+     * Trains on the supplied image-mask pairs using the supplied number of threads.
+     *
+     * Each thread accumulates the pairs it takes into its own histogram, and the
+     * histograms are then summed pairwise, in parallel, until one is left. The result
+     * is the same as training on the pairs one after another.
+     *
+     * @param trainingImages    image-mask pairs to train on
+     * @param numThreads        number of threads to train with
+     */
+    public void train(final List<Tuple<ColorImage, GrayImage>> trainingImages, int numThreads) {
+        trainInParallel(new TrainingPairs() {
+            @Override
+            public int size() {
+                return trainingImages.size();
+            }
 
-            histogram.addImageData(image, mask);
-        }
+            @Override
+            public Tuple<ColorImage, GrayImage> open(int index) {
+                return trainingImages.get(index);
+            }
 
-        trained = true;
+            @Override
+            public void close(Tuple<ColorImage, GrayImage> pair) {
+                // Owned by the caller
+            }
+        }, numThreads);
     }
 
     public void trainByFiles(List<Tuple<String, String>> trainingFiles) {
+        trainByFiles(trainingFiles, 1);
+    }
 
-        if (trainingFiles.size() == 0)
-            return;
-
-        for (Tuple<String, String> pair : trainingFiles) {
-            ColorImage image = new ColorImage(pair.item1);
-            GrayImage mask = new GrayImage(pair.item2);
+    /**
+     * Trains on the supplied image-mask file pairs using the supplied number of threads.
+     *
+     * Each thread decodes the pairs it takes itself, so decoding is parallel as well,
+     * and only one pair per thread is in memory at a time.
+     *
+     * @see ColorIsolation#train(List, int)
+     *
+     * @param trainingFiles     image-mask file pairs to train on
+     * @param numThreads        number of threads to train with
+     */
+    public void trainByFiles(final List<Tuple<String, String>> trainingFiles, int numThreads) {
+        trainInParallel(new TrainingPairs() {
+            @Override
+            public int size() {
+                return trainingFiles.size();
+            }
 
-            histogram.addImageData(image, mask);
+            @Override
+            public Tuple<ColorImage, GrayImage> open(int index) {
+                Tuple<String, String> pair = trainingFiles.get(index);
+                return new Tuple<ColorImage, GrayImage>(new ColorImage(pair.item1), new GrayImage(pair.item2));
+            }
 
-            image.release();
-            mask.release();
-        }
+            @Override
+            public void close(Tuple<ColorImage, GrayImage> pair) {
+                ReleaseContainer.releaseBoth(pair);
+            }
+        }, numThreads);
     }
 
     public void fastIsolation(ColorImage image) {
@@ -60,31 +118,50 @@ public class ColorIsolation implements Releasable {
             return;
 
         else {
-            GrayImage backProjection = histogram.backProjectionOf(image);
-            GrayImage mask = (GrayImage) backProjection.copy();
+            try (ReleaseScope scope = new ReleaseScope()) {
+                Isolation isolation = scope.add(isolate(image));
 
-            mask.threshold();
+                long start = StageTimer.start();
+                image.maskWith(isolation.mask());
+                StageTimer.record(Stage.SHAPE_FILTER, start);
+            }
+        }
+    }
+
+    /**
+     * Finds the plant in the supplied image without modifying it.
+     *
+     * This is {@link ColorIsolation#fastIsolation(ColorImage)} short of masking the image, so
+     * the caller can write the mask, crop to the plant or measure it instead. Until trained,
+     * the whole image is kept.
+     *
+     * @param image     image to find the plant in
+     * @return          the kept components and their mask, must be released by the caller
+     */
+    public Isolation isolate(ColorImage image) {
+        if (trained == false)
+            return new Isolation(GrayImage.maskShowAll(image.size()), new ArrayList<Component>(), image.rectangle());
+
+        try (ReleaseScope scope = new ReleaseScope()) {
+            // Same mask as thresholding the histogram's back-projection, minus the color conversion
+            GrayImage mask = scope.add(lookupTable.maskOf(image));
             mask.medianFilter(MEDIAN_STRENGTH);
 
-            ShapeCollection shapes = ShapeCollection.FromImage(mask);
-            List<Shape> allShapes = shapes.shapes();
-            List<Shape> keepShapes = new ArrayList<Shape>();
+            // Size and color of every blob of the mask in one pass, no contours or per-shape drawing
+            ConnectedComponents components = ConnectedComponents.FromImage(mask, image);
 
-            for (Shape shape : allShapes) {
-                ColorPixel averagePixel = shape.averagePixelOf(image);
+            long start = StageTimer.start();
+            List<Component> keepComponents = new ArrayList<Component>();
 
-                if (shape.numberPixels() > 250 && averagePixel.isGreen())
-                    keepShapes.add(shape);
+            for (Component component : components.components()) {
+                if (component.numberPixels() > MIN_SHAPE_PIXELS && component.averagePixel().isGreen())
+                    keepComponents.add(component);
             }
 
-            ShapeCollection keptShapes = new ShapeCollection(keepShapes);
-            GrayImage shapesMask = keptShapes.mask(image.size());
-
-            image.maskWith(shapesMask);
+            GrayImage componentsMask = components.maskOf(keepComponents);
+            StageTimer.record(Stage.SHAPE_FILTER, start);
 
-            backProjection.release();
-            mask.release();
-            shapesMask.release();
+            return new Isolation(componentsMask, keepComponents);
         }
     }
 
@@ -93,33 +170,135 @@ public class ColorIsolation implements Releasable {
             return new Tuple<Image, ColorImage>(GrayImage.empty(), image);
 
         else {
-            GrayImage backProjection = histogram.backProjectionOf(image);
-            GrayImage mask = (GrayImage) backProjection.copy();
-            mask.threshold();
+            try (ReleaseScope scope = new ReleaseScope()) {
+                GrayImage backProjection = scope.add(histogram.backProjectionOf(image));
+                GrayImage mask = scope.add((GrayImage) backProjection.copy());
+                mask.threshold();
 
-            mask.medianFilter(MEDIAN_STRENGTH);
-            ShapeCollection shapes = ShapeCollection.FromImage(mask);
-            List<Shape> allShapes = shapes.shapes();
-            List<Shape> keepShapes = new ArrayList<Shape>();
+                mask.medianFilter(MEDIAN_STRENGTH);
+                ShapeCollection shapes = scope.add(ShapeCollection.FromImage(mask));
+                List<Shape> allShapes = shapes.shapes();
+                List<Shape> keepShapes = new ArrayList<Shape>();
 
-            for (Shape shape : allShapes) {
-                ColorPixel averagePixel = shape.averagePixelOf(image);
+                for (Shape shape : allShapes) {
+                    ColorPixel averagePixel = shape.averagePixelOf(image);
 
-                if (shape.numberPixels() > 250 && averagePixel.isGreen())
-                    keepShapes.add(shape);
+                    if (shape.numberPixels() > MIN_SHAPE_PIXELS && averagePixel.isGreen())
+                        keepShapes.add(shape);
+                }
+
+                ShapeCollection keptShapes = scope.add(new ShapeCollection(keepShapes));
+                GrayImage shapesMask = scope.add(keptShapes.mask(image.size()));
+
+                ColorImage copy = (ColorImage) image.copy();
+                copy.maskWith(shapesMask);
+
+                return new Tuple<Image, ColorImage>(shapes.maskWithAverageValues(image), copy);
             }
+        }
+    }
+
+
+    /// ======================================================================
+    /// Persistence
+    /// ======================================================================
+
+    /**
+     * Returns a hash of the content of every training image and mask this algorithm has
+     * been trained on, in hexadecimal.
+     *
+     * Two isolators trained on the same images in the same order have the same hash,
+     * regardless of the files the images were read from. A loaded model keeps the hash
+     * it was saved with. Training a loaded model further chains the new images onto
+     * that hash.
+     *
+     * @return      hash of the training images
+     */
+    public String trainingHash() {
+        if (loadedHash != null)
+            return loadedHash;
 
-            ShapeCollection keptShapes = new ShapeCollection(keepShapes);
-            GrayImage shapesMask = keptShapes.mask(image.size());
+        try {
+            byte hash[] = ((MessageDigest) trainingDigest.clone()).digest();
 
-            ColorImage copy = (ColorImage) image.copy();
-            copy.maskWith(shapesMask);
+            StringBuilder hex = new StringBuilder(2 * hash.length);
+            for (byte b : hash)
+                hex.append(String.format("%02x", b));
+
+            return hex.toString();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Saves the trained model to the supplied file so it can be loaded with
+     * {@link ColorIsolation#load(String)} instead of training again.
+     *
+     * The file records the format version, whether the model was trained, the hash of
+     * its training images and its histogram.
+     *
+     * @param filename          file to save the model to
+     * @throws IOException      if the file can't be written
+     */
+    public void save(String filename) throws IOException {
+        Directory.EnsurePathExistsFor(filename);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        try {
+            out.writeInt(MODEL_MAGIC);
+            out.writeInt(MODEL_VERSION);
+            out.writeBoolean(trained);
+            out.writeUTF(trainingHash());
+            histogram.save(out);
+        }
+        finally {
+            out.close();
+        }
+    }
 
-            mask.release();
-            shapesMask.release();
-            backProjection.release();
+    /**
+     * Loads a model saved with {@link ColorIsolation#save(String)}.
+     *
+     * The loaded isolator is ready to use without any training.
+     *
+     * @param filename          file to load the model from
+     * @return                  the loaded isolator
+     * @throws IOException      if the file can't be read or isn't a model of a supported version
+     */
+    public static ColorIsolation load(String filename) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try {
+            if (in.readInt() != MODEL_MAGIC)
+                throw new IOException(filename + " is not a color isolation model.");
+
+            int version = in.readInt();
+            if (version != MODEL_VERSION)
+                throw new IOException("Model " + filename + " is of unsupported version " + version + ".");
+
+            boolean trained = in.readBoolean();
+            String trainingHash = in.readUTF();
+            Histogram histogram = Histogram.load(in);
+
+            ColorIsolation isolation = new ColorIsolation(histogram.partition());
+            isolation.histogram.release();
+            isolation.histogram = histogram;
+            isolation.trainingDigest.update(trainingHash.getBytes("UTF-8"));
+            isolation.loadedHash = trainingHash;
+
+            if (trained) {
+                isolation.lookupTable = histogram.lookupTable();
+                isolation.trained = true;
+            }
 
-            return new Tuple<Image, ColorImage>(shapes.maskWithAverageValues(image), copy);
+            return isolation;
+        }
+        catch (EOFException e) {
+            throw new IOException("Model " + filename + " is truncated.", e);
+        }
+        finally {
+            in.close();
         }
     }
 
@@ -171,12 +350,195 @@ public class ColorIsolation implements Releasable {
     }
 
 
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+
+    /**
+     * Source of training pairs for {@link ColorIsolation#trainInParallel}, opened and closed
+     * by whichever thread trains on them.
+     */
+    private interface TrainingPairs {
+        int size();
+        Tuple<ColorImage, GrayImage> open(int index);
+        void close(Tuple<ColorImage, GrayImage> pair);
+    }
+
+    private void trainInParallel(final TrainingPairs trainingPairs, int numThreads) {
+        final int numberPairs = trainingPairs.size();
+        if (numberPairs == 0)
+            return;
+
+        int numberWorkers = Math.max(1, Math.min(numThreads, numberPairs));
+        ExecutorService pool = Executors.newFixedThreadPool(numberWorkers);
+
+        try {
+            // Workers take the next untrained pair until none are left
+            final AtomicInteger nextPair = new AtomicInteger();
+            final AtomicBoolean abandoned = new AtomicBoolean();
+            final byte pairHashes[][] = new byte[numberPairs][];
+
+            List<Future<Histogram>> partials = new ArrayList<Future<Histogram>>(numberWorkers);
+            for (int worker = 0; worker < numberWorkers; worker++)
+                partials.add(pool.submit(new Callable<Histogram>() {
+                    @Override
+                    public Histogram call() {
+                        Histogram partial = Histogram.blank(histogramPartition);
+                        boolean trainedAll = false;
+
+                        try {
+                            for (int index = nextPair.getAndIncrement();
+                                 index < numberPairs && !abandoned.get();
+                                 index = nextPair.getAndIncrement()) {
+                                Tuple<ColorImage, GrayImage> pair = trainingPairs.open(index);
+                                try {
+                                    partial.addImageData(pair.item1, pair.item2);
+                                    pairHashes[index] = hashOf(pair.item1, pair.item2);
+                                }
+                                finally {
+                                    trainingPairs.close(pair);
+                                }
+                            }
+                            trainedAll = true;
+                        }
+                        finally {
+                            if (!trainedAll)
+                                partial.release();
+                        }
+
+                        return partial;
+                    }
+                }));
+
+            List<Histogram> histograms = new ArrayList<Histogram>(numberWorkers);
+            try {
+                for (Future<Histogram> partial : partials)
+                    histograms.add(partial.get());
+            }
+            catch (Exception e) {
+                // The other workers stop after their current pair, their histograms are released too
+                abandoned.set(true);
+                releaseAll(histograms, partials.subList(histograms.size(), partials.size()));
+                throw e;
+            }
+
+            Histogram trainedHistogram = reduce(histograms, pool);
+            histogram.combineWith(trainedHistogram);
+            trainedHistogram.release();
+
+            // Pairs are hashed in order no matter which thread trained on them
+            loadedHash = null;
+            for (byte pairHash[] : pairHashes)
+                trainingDigest.update(pairHash);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Training was interrupted.", e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Training failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        lookupTable = histogram.lookupTable();
+        trained = true;
+    }
+
+    /**
+     * Sums the histograms in rounds, each round adding every other histogram into its
+     * neighbor in parallel, until one histogram remains.
+     */
+    private static Histogram reduce(List<Histogram> histograms, ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+
+        while (histograms.size() > 1) {
+            List<Histogram> sums = new ArrayList<Histogram>((histograms.size() + 1) / 2);
+            List<Future<?>> additions = new ArrayList<Future<?>>();
+
+            for (int i = 0; i < histograms.size(); i += 2) {
+                final Histogram sum = histograms.get(i);
+                sums.add(sum);
+
+                if (i + 1 < histograms.size()) {
+                    final Histogram added = histograms.get(i + 1);
+                    additions.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            sum.combineWith(added);
+                            added.release();
+                        }
+                    }));
+                }
+            }
+
+            for (Future<?> addition : additions)
+                addition.get();
+
+            histograms = sums;
+        }
+
+        return histograms.get(0);
+    }
+
+    /**
+     * Releases the histograms, and those of the training still running or done, once it's
+     * done. Training that failed has already released its own.
+     */
+    private static void releaseAll(List<Histogram> histograms, List<Future<Histogram>> remaining) {
+        for (Histogram histogram : histograms)
+            histogram.release();
+
+        boolean interrupted = false;
+        for (Future<Histogram> partial : remaining)
+            while (true) {
+                try {
+                    partial.get().release();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    break;
+                }
+            }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static byte[] hashOf(ColorImage image, GrayImage mask) {
+        MessageDigest digest = newDigest();
+        update(digest, image.pixelRows());
+        update(digest, mask.pixelRows());
+        return digest.digest();
+    }
+
+    // Row by row, so no copy of the whole image is made
+    private static void update(MessageDigest digest, PixelRows rows) {
+        while (rows.next())
+            digest.update(rows.row());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is required of every Java platform.", e);
+        }
+    }
+
+
     /// ======================================================================
     /// Releasable
     /// ======================================================================
     @Override
     public void release() {
         histogram.release();
+        lookupTable = null;
         trained = false;
     }
 }
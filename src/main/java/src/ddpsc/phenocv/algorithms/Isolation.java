@@ -0,0 +1,147 @@
+package src.ddpsc.phenocv.algorithms;
+
+import org.opencv.core.Rect;
+import src.ddpsc.phenocv.computer_vision.Component;
+import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.computer_vision.Releasable;
+import src.ddpsc.phenocv.computer_vision.ShapeCollection;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link ColorIsolation} kept of an image: the components judged to be plant and a mask
+ * showing only their pixels.
+ *
+ * The isolated image itself isn't part of it, so what to do with the isolation is left to
+ * the caller. Masking the image with {@link Isolation#mask()} gives the same image as
+ * {@link ColorIsolation#fastIsolation(src.ddpsc.phenocv.computer_vision.ColorImage)}.
+ *
+ * The mask is owned by the isolation and released with it.
+ */
+public final class Isolation implements Releasable {
+
+    private final GrayImage mask;
+    private final List<Component> components;
+    private final Rect boundingBox;
+    private ShapeCollection shapes;
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    Isolation(GrayImage mask, List<Component> components) {
+        this(mask, components, boundingBoxOf(components));
+    }
+
+    Isolation(GrayImage mask, List<Component> components, Rect boundingBox) {
+        this.mask = mask;
+        this.components = Collections.unmodifiableList(components);
+        this.boundingBox = boundingBox;
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns a mask of the same dimensions as the isolated image showing only the kept
+     * components.
+     *
+     * @return      mask of the kept components, owned by this isolation
+     */
+    public GrayImage mask() {
+        return mask;
+    }
+
+    /**
+     * Returns the components kept as plant.
+     *
+     * An isolation by an untrained algorithm keeps the whole image but has no components.
+     *
+     * @return      kept components
+     */
+    public List<Component> components() {
+        return components;
+    }
+
+    /**
+     * Returns the smallest rectangle containing every kept pixel.
+     *
+     * The rectangle is empty, of zero width and height, if nothing was kept.
+     *
+     * @return      bounding box of the kept components
+     */
+    public Rect boundingBox() {
+        return boundingBox.clone();
+    }
+
+    /**
+     * Returns the outlines and holes of the kept pixels, found the first time they're asked
+     * for from within the bounding box alone. Their points are in the coordinates of the
+     * whole image.
+     *
+     * @return      shapes of the kept pixels, owned by this isolation
+     */
+    public ShapeCollection shapes() {
+        if (shapes == null) {
+            Rect region = isEmpty() ? new Rect(0, 0, 1, 1) : boundingBox;
+            shapes = ShapeCollection.FromRegion(mask, region);
+        }
+
+        return shapes;
+    }
+
+    /**
+     * Returns whether nothing in the image was kept.
+     *
+     * @return      true if no pixels were kept
+     */
+    public boolean isEmpty() {
+        return boundingBox.area() == 0;
+    }
+
+
+    /// ======================================================================
+    /// Releasable
+    /// ======================================================================
+    @Override
+    public void release() {
+        mask.release();
+        releaseShapes();
+    }
+
+    /**
+     * Releases the shapes, if they were found, but not the mask, so the mask can outlive the
+     * isolation. The shapes are found again if asked for.
+     */
+    public void releaseShapes() {
+        if (shapes != null) {
+            shapes.release();
+            shapes = null;
+        }
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    private static Rect boundingBoxOf(List<Component> components) {
+        if (components.isEmpty())
+            return new Rect();
+
+        int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE; // exclusive
+
+        for (Component component : components) {
+            Rect box = component.boundingBox();
+            left = Math.min(left, box.x);
+            top = Math.min(top, box.y);
+            right = Math.max(right, box.x + box.width);
+            bottom = Math.max(bottom, box.y + box.height);
+        }
+
+        return new Rect(left, top, right - left, bottom - top);
+    }
+}
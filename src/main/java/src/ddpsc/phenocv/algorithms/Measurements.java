@@ -0,0 +1,118 @@
+package src.ddpsc.phenocv.algorithms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traits measured of one isolated image: traits of the image's plant material as a whole, and
+ * traits of each separate plant, that is each shape kept by the isolation.
+ *
+ * Traits are named numbers, kept in the order they were measured in. Plants are numbered from
+ * 0 in the order of {@link Isolation#shapes()}, so traits measured by different algorithms
+ * line up by plant number.
+ */
+public final class Measurements {
+
+    private final String imageName;
+    private final String modelHash;
+    private final Map<String, Number> imageTraits;
+    private final List<Map<String, Number>> plantTraits;
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    public Measurements(String imageName) {
+        this(imageName, null);
+    }
+
+    public Measurements(String imageName, String modelHash) {
+        this.imageName = imageName;
+        this.modelHash = modelHash;
+        imageTraits = new LinkedHashMap<String, Number>();
+        plantTraits = new ArrayList<Map<String, Number>>();
+    }
+
+
+    /// ======================================================================
+    /// Recording
+    /// ======================================================================
+
+    /**
+     * Records a trait of the image as a whole.
+     *
+     * @param trait     name of the trait
+     * @param value     measured value
+     */
+    public void putImageTrait(String trait, Number value) {
+        imageTraits.put(trait, value);
+    }
+
+    /**
+     * Records a trait of one plant.
+     *
+     * @param plant     number of the plant
+     * @param trait     name of the trait
+     * @param value     measured value
+     */
+    public void putPlantTrait(int plant, String trait, Number value) {
+        while (plantTraits.size() <= plant)
+            plantTraits.add(new LinkedHashMap<String, Number>());
+
+        plantTraits.get(plant).put(trait, value);
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns the name of the image measured.
+     *
+     * @return      name of the image
+     */
+    public String imageName() {
+        return imageName;
+    }
+
+    /**
+     * Returns the hash of the model the image was isolated with, see
+     * {@link ColorIsolation#trainingHash()}.
+     *
+     * @return      hash of the model, null if not known
+     */
+    public String modelHash() {
+        return modelHash;
+    }
+
+    /**
+     * Returns the traits of the image as a whole, by name, in the order they were recorded.
+     *
+     * @return      traits of the image
+     */
+    public Map<String, Number> imageTraits() {
+        return Collections.unmodifiableMap(imageTraits);
+    }
+
+    /**
+     * Returns the traits of each plant, by plant number.
+     *
+     * @return      traits of every plant
+     */
+    public List<Map<String, Number>> plantTraits() {
+        return Collections.unmodifiableList(plantTraits);
+    }
+
+    /**
+     * Returns the number of plants with traits recorded.
+     *
+     * @return      number of plants
+     */
+    public int numberPlants() {
+        return plantTraits.size();
+    }
+}
@@ -0,0 +1,98 @@
+package src.ddpsc.phenocv.algorithms;
+
+import org.opencv.core.Rect;
+import src.ddpsc.phenocv.computer_vision.Shape;
+import src.ddpsc.phenocv.computer_vision.ShapeCollection;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
+
+import java.util.List;
+
+/**
+ * Measures the size and form of the plants kept by an {@link Isolation}, from their contours.
+ *
+ * Each plant, and the plant material of the image as a whole, gets:
+ *      pixels          number of pixels, holes excluded
+ *      area            area within the outline less that of the holes, through the centers
+ *                      of the boundary pixels
+ *      perimeter       length of the outline
+ *      convexHullArea  area of the smallest convex polygon containing the outline
+ *      solidity        area / convexHullArea
+ *      x, y            top left corner of the bounding box
+ *      width, height   size of the bounding box
+ * The image as a whole also gets plants, the number of plants, and its area and perimeter are
+ * the sums over the plants, while its convex hull and bounding box contain every plant.
+ *
+ * Everything is measured from the contours the isolation found, nothing is read back from an
+ * image written to disk.
+ */
+public final class Morphology {
+
+    private Morphology() {}
+
+    /**
+     * Measures the plants of the supplied isolation into the supplied measurements.
+     *
+     * @param isolation         isolation to measure the plants of
+     * @param measurements      measurements to record the traits in
+     */
+    public static void measure(Isolation isolation, Measurements measurements) {
+        ShapeCollection shapes = isolation.shapes(); // owned by the isolation, do not release
+
+        long start = StageTimer.start();
+        List<Shape> plants = shapes.shapes();
+
+        int totalPixels = 0;
+        double totalArea = 0;
+        double totalPerimeter = 0;
+
+        for (int plant = 0; plant < plants.size(); plant++) {
+            Shape shape = plants.get(plant);
+            int pixels = shape.numberPixels();
+            double area = shape.area();
+            double perimeter = shape.perimeter();
+            double convexHullArea = shape.convexHullArea();
+
+            measurements.putPlantTrait(plant, "pixels", pixels);
+            measurements.putPlantTrait(plant, "area", area);
+            measurements.putPlantTrait(plant, "perimeter", perimeter);
+            measurements.putPlantTrait(plant, "convexHullArea", convexHullArea);
+            measurements.putPlantTrait(plant, "solidity", solidity(area, convexHullArea));
+            putBoundingBox(measurements, plant, shape.boundingBox());
+
+            totalPixels += pixels;
+            totalArea += area;
+            totalPerimeter += perimeter;
+        }
+
+        double convexHullArea = shapes.convexHullArea();
+        Rect boundingBox = isolation.isEmpty() ? new Rect() : isolation.boundingBox();
+
+        measurements.putImageTrait("plants", plants.size());
+        measurements.putImageTrait("pixels", totalPixels);
+        measurements.putImageTrait("area", totalArea);
+        measurements.putImageTrait("perimeter", totalPerimeter);
+        measurements.putImageTrait("convexHullArea", convexHullArea);
+        measurements.putImageTrait("solidity", solidity(totalArea, convexHullArea));
+        measurements.putImageTrait("x", boundingBox.x);
+        measurements.putImageTrait("y", boundingBox.y);
+        measurements.putImageTrait("width", boundingBox.width);
+        measurements.putImageTrait("height", boundingBox.height);
+        StageTimer.record(Stage.MEASUREMENT, start);
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    private static double solidity(double area, double convexHullArea) {
+        return convexHullArea > 0 ? area / convexHullArea : 0;
+    }
+
+    private static void putBoundingBox(Measurements measurements, int plant, Rect boundingBox) {
+        measurements.putPlantTrait(plant, "x", boundingBox.x);
+        measurements.putPlantTrait(plant, "y", boundingBox.y);
+        measurements.putPlantTrait(plant, "width", boundingBox.width);
+        measurements.putPlantTrait(plant, "height", boundingBox.height);
+    }
+}
@@ -25,7 +25,9 @@ public class BackgroundModel {
      * @param backgroundImage       image to train the model with
      */
     public void addBackgroundImageToModel(Image backgroundImage) {
-        model.apply(backgroundImage.image, new Mat(), 10);
+        Mat foregroundMask = new Mat(); // only trained, not read
+        model.apply(backgroundImage.image, foregroundMask, 10);
+        foregroundMask.release();
     }
 
     /**
@@ -2,6 +2,8 @@ package src.ddpsc.phenocv.computer_vision;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
@@ -15,6 +17,11 @@ import org.opencv.imgproc.Imgproc;
  * re-computed. However manually setting the pixels of this image does wipe out the different
  * calculated images as they're no longer accurate as the pixels have changed.
  *
+ * Conversions are borrowed with {@link ColorImage#borrowConversion(ColorSpace)} and returned
+ * with {@link ColorImage#returnConversion(ColorSpace)}; returned conversions are kept within
+ * the {@link ConversionCache}'s budget, shared by every image, so they can be released before
+ * the image is.
+ *
  * Wraps the OpenCV {@link Mat} "class".
  *
  * If a developer extends this class, they must take care to reset the color conversion objects
@@ -82,6 +89,23 @@ public class ColorImage extends Image {
         this(width, height, ColorPixel.BLACK);
     }
 
+    /**
+     * Creates a color-formatted image from the contents of an image file already read into
+     * memory, decoding it just as {@link ColorImage#ColorImage(String)} decodes the file.
+     *
+     * If the contents can't be decoded the image is empty.
+     *
+     * @param encoded   contents of an image file
+     * @return          decoded image
+     */
+    public static ColorImage decode(byte[] encoded) {
+        MatOfByte buffer = new MatOfByte(encoded);
+        Mat decoded = Highgui.imdecode(buffer, Highgui.CV_LOAD_IMAGE_COLOR);
+        buffer.release();
+
+        return new ColorImage(decoded);
+    }
+
     /**
      * Returns an empty image with zero pixels
      *
@@ -130,7 +154,13 @@ public class ColorImage extends Image {
 
         image = new Mat(rows, columns, CvType.CV_8UC3);
         image.put(0, 0, pixels);
+        LeakTracker.allocated(this, image);
+
+        resetFactories();
+    }
 
+    @Override
+    void pixelsChanged() {
         resetFactories();
     }
 
@@ -146,6 +176,16 @@ public class ColorImage extends Image {
         return colorCopy;
     }
 
+    @Override
+    public Image crop(Rect region) {
+        Mat regionView = image.submat(region);
+        Mat croppedMatrix = new Mat();
+        regionView.copyTo(croppedMatrix);
+        regionView.release();
+
+        return new ColorImage(croppedMatrix);
+    }
+
     /**
      * Converts this image to a {@link GrayImage}.
      *
@@ -177,6 +217,47 @@ public class ColorImage extends Image {
     /// ======================================================================
     /// Lower level OpenCV Java bindings access
     /// ======================================================================
+
+    /**
+     * Borrows this image converted to the supplied color space, converting it only if the
+     * conversion isn't cached.
+     *
+     * The matrix is owned by this image: it mustn't be released or modified, and mustn't
+     * be used after it's returned with {@link ColorImage#returnConversion(ColorSpace)}. Every
+     * borrow must be returned, until then the conversion can't be released to stay within
+     * the {@link ConversionCache}'s budget. The BGR conversion is this image's own matrix.
+     *
+     * @param colorSpace    color space to convert to
+     * @return              {@link Mat} of this image in the color space
+     */
+    public Mat borrowConversion(ColorSpace colorSpace) {
+        ColorTypeFactory conversion = conversionTo(colorSpace);
+        if (conversion == null)
+            return image;
+
+        return conversion.borrow(image);
+    }
+
+    /**
+     * Returns a conversion borrowed with {@link ColorImage#borrowConversion(ColorSpace)}, so it
+     * may be released once it's the least recently used and the cache is over budget.
+     *
+     * @param colorSpace    color space of the borrowed conversion
+     */
+    public void returnConversion(ColorSpace colorSpace) {
+        ColorTypeFactory conversion = conversionTo(colorSpace);
+        if (conversion != null)
+            conversion.giveBack();
+    }
+
+    /**
+     * Copy of this image's OpenCV matrix, to be released by the caller.
+     *
+     * To read the matrix without copying it use {@link ColorImage#borrowConversion(ColorSpace)}
+     * with {@link ColorSpace#BGR}, or {@link Image#pixelRows()} for its pixels.
+     *
+     * @return      copy of the BGR matrix
+     */
     public Mat cvAsBGRMatrix() {
         Mat bgr = new Mat();
         image.copyTo(bgr);
@@ -189,6 +270,9 @@ public class ColorImage extends Image {
      * For use in adding functionality to this library without
      * forking or modifying its source code.
      *
+     * The BGR matrix is a copy, to be released by the caller. The others are owned by this
+     * image, so they mustn't be released or modified.
+     *
      * @param histogramPartition       the channel of the resulting Matrix
      * @return              {@link Mat} representing the image in the requested format format
      */
@@ -211,7 +295,7 @@ public class ColorImage extends Image {
             case YUV:
                 return cvAsYUVMatrix();
             default:
-                return cvAsBGRMatrix();
+                return image;
         }
     }
 
@@ -252,6 +336,27 @@ public class ColorImage extends Image {
         return "Color Image\n" + super.debugString();
     }
 
+    private ColorTypeFactory conversionTo(ColorSpace colorSpace) {
+        switch (colorSpace) {
+            case HSV:
+                return hsvImage;
+            case Lab:
+                return labImage;
+            case YCrCb:
+                return ycrcbImage;
+            case Luv:
+                return luvImage;
+            case HLS:
+                return hlsImage;
+            case XYZ:
+                return xyzImage;
+            case YUV:
+                return yuvImage;
+            default:
+                return null; // BGR, the image itself
+        }
+    }
+
     private void resetFactories() {
         hsvImage.reset();
         labImage.reset();
@@ -0,0 +1,164 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import src.ddpsc.phenocv.utility.ReleaseScope;
+
+import java.util.Arrays;
+
+/**
+ * The color of the pixels a mask lets show through in a {@link ColorImage}: their average
+ * blue, green and red, and how they spread over the hue circle.
+ *
+ * Hues are counted in {@link ColorStatistics#HUE_BINS} bins of
+ * {@link ColorStatistics#HUE_BIN_DEGREES} degrees each, starting from red at 0 degrees, so
+ * green leaves fall around 60 to 140 degrees and yellowing or browning leaves below that.
+ * Hues come from the image's HSV form, borrowed from its {@link ConversionCache}d conversions,
+ * so any number of statistics of the same image share one color conversion while it's kept.
+ */
+public final class ColorStatistics {
+
+    public static final int HUE_BINS = 18;
+    public static final int HUE_BIN_DEGREES = 360 / HUE_BINS;
+
+    // OpenCV keeps 8 bit hues as half their degrees, 0 to 180
+    private static final float HUE_RANGE = 180;
+    private static final int HUE_CHANNEL = 0;
+
+    private final int numberPixels;
+    private final double meanBlue;
+    private final double meanGreen;
+    private final double meanRed;
+    private final double hueFractions[];
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    private ColorStatistics(int numberPixels, Scalar mean, double hueFractions[]) {
+        this.numberPixels = numberPixels;
+        this.meanBlue = mean.val[0];
+        this.meanGreen = mean.val[1];
+        this.meanRed = mean.val[2];
+        this.hueFractions = hueFractions;
+    }
+
+    /**
+     * Measures the color of the pixels of the image shown by the mask within the region.
+     *
+     * The mask must be of the same dimensions as the image. Nothing outside the region is
+     * read, so a region bounding the shown pixels gives the same statistics as the whole
+     * image, faster. An empty region shows no pixels.
+     *
+     * @param image         image to measure the color of
+     * @param mask          mask showing the pixels to measure
+     * @param region        region of the image containing every shown pixel
+     * @return              color of the shown pixels
+     */
+    public static ColorStatistics of(ColorImage image, GrayImage mask, Rect region) {
+        if (region.area() == 0)
+            return none();
+
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Mat bgr = scope.add(image.image.submat(region));
+            Mat hsv = scope.add(image.borrowConversion(ColorSpace.HSV).submat(region));
+            Mat regionMask = scope.add(mask.image.submat(region));
+
+            return of(bgr, hsv, regionMask);
+        }
+        finally {
+            image.returnConversion(ColorSpace.HSV);
+        }
+    }
+
+    /**
+     * Measures the color of the pixels of the supplied BGR and HSV matrices shown by the
+     * mask, all of the same dimensions.
+     */
+    static ColorStatistics of(Mat bgr, Mat hsv, Mat mask) {
+        int numberPixels = Core.countNonZero(mask);
+        if (numberPixels == 0)
+            return none();
+
+        Scalar mean = Core.mean(bgr, mask);
+
+        float counts[] = new float[HUE_BINS];
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Mat histogram = scope.add(new Mat());
+            Imgproc.calcHist(
+                    Arrays.asList(hsv),
+                    scope.add(new MatOfInt(HUE_CHANNEL)),
+                    mask,
+                    histogram,
+                    scope.add(new MatOfInt(HUE_BINS)),
+                    scope.add(new MatOfFloat(0, HUE_RANGE)));
+            histogram.get(0, 0, counts);
+        }
+
+        double hueFractions[] = new double[HUE_BINS];
+        for (int bin = 0; bin < HUE_BINS; bin++)
+            hueFractions[bin] = counts[bin] / numberPixels;
+
+        return new ColorStatistics(numberPixels, mean, hueFractions);
+    }
+
+    private static ColorStatistics none() {
+        return new ColorStatistics(0, new Scalar(0, 0, 0), new double[HUE_BINS]);
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns the number of pixels measured.
+     *
+     * @return      number of pixels
+     */
+    public int numberPixels() {
+        return numberPixels;
+    }
+
+    public double meanBlue() {
+        return meanBlue;
+    }
+
+    public double meanGreen() {
+        return meanGreen;
+    }
+
+    public double meanRed() {
+        return meanRed;
+    }
+
+    /**
+     * Returns the excess green index of the average color, 2g - r - b of its chromatic
+     * coordinates, where g is green / (red + green + blue) and so on. It ranges from -1 to 2,
+     * higher the greener.
+     *
+     * Black, or no pixels at all, has an index of 0.
+     *
+     * @return      excess green of the average color
+     */
+    public double excessGreen() {
+        double sum = meanBlue + meanGreen + meanRed;
+        return sum > 0 ? (2 * meanGreen - meanRed - meanBlue) / sum : 0;
+    }
+
+    /**
+     * Returns the fraction of the pixels whose hue falls in the supplied bin, those from
+     * bin * {@link ColorStatistics#HUE_BIN_DEGREES} degrees up to the next bin.
+     *
+     * @param bin       bin from 0 to {@link ColorStatistics#HUE_BINS} - 1
+     * @return          fraction of the pixels, 0 if there are none
+     */
+    public double hueFraction(int bin) {
+        return hueFractions[bin];
+    }
+}
@@ -4,27 +4,120 @@ import org.opencv.core.Mat;
 import org.opencv.imgproc.Imgproc;
 import src.ddpsc.phenocv.computer_vision.Releasable;
 import src.ddpsc.phenocv.utility.ReversableObjectFactory;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
 
 /**
+ * A cached color space conversion of an image, kept within the {@link ConversionCache}'s
+ * budget.
+ *
  * @author cjmcentee
  */
 abstract class ColorTypeFactory extends ReversableObjectFactory<Mat, Mat> implements Releasable {
 
+    // Guarded by the ConversionCache's lock
+    private int borrows;
+    private boolean pinned;
+    private int releases; // so a conversion made from pixels since released isn't kept
+
     protected ColorTypeFactory() {
         super();
     }
 
+    /**
+     * Returns the conversion of the supplied image, making it if it isn't cached, and keeps
+     * it from being evicted until it's given back.
+     */
+    Mat borrow(Mat seed) {
+        while (true) {
+            int releasesBefore;
+            synchronized (ConversionCache.class) {
+                if (calculatedObject != null) {
+                    borrows++;
+                    ConversionCache.used(this);
+                    return calculatedObject;
+                }
+                releasesBefore = releases;
+            }
+
+            Mat converted = calculate(seed); // outside the lock, other threads keep converting
+
+            synchronized (ConversionCache.class) {
+                // Another thread converted first, or the image changed or was released meanwhile
+                if (calculatedObject != null || releases != releasesBefore) {
+                    converted.release();
+                    continue;
+                }
+                calculatedObject = converted;
+                borrows++;
+                ConversionCache.added(this, converted.total() * converted.elemSize());
+                return converted;
+            }
+        }
+    }
+
+    void giveBack() {
+        synchronized (ConversionCache.class) {
+            if (borrows > 0)
+                borrows--;
+            if (!isBorrowed())
+                ConversionCache.returned();
+        }
+    }
+
+    /**
+     * The conversion, kept for as long as the image lives. It leaves the cache, so it's held
+     * by the image alone and freed with it even if the image is never released.
+     */
+    @Override
+    public Mat getFrom(Mat seed) {
+        Mat converted = borrow(seed);
+        synchronized (ConversionCache.class) {
+            pinned = true;
+            borrows--;
+            ConversionCache.removed(this);
+        }
+        return converted;
+    }
+
+    boolean isBorrowed() {
+        return borrows > 0 || pinned;
+    }
+
+    // Called by the cache, under its lock, once it's forgotten this conversion
+    void evict() {
+        calculatedObject.release();
+        calculatedObject = null;
+    }
+
     @Override
     public void release() {
-        if (calculatedObject != null)
-            calculatedObject.release();
+        synchronized (ConversionCache.class) {
+            ConversionCache.removed(this);
+            if (calculatedObject != null)
+                calculatedObject.release();
+            calculatedObject = null;
+            borrows = 0;
+            pinned = false;
+            releases++;
+        }
+    }
+
+    /**
+     * Releases the conversion, the image it was made from has changed.
+     */
+    @Override
+    public void reset() {
+        release();
     }
 
     @Override
     protected Mat calculate(Mat seed) {
-      calculatedObject = new Mat();
-      Imgproc.cvtColor(seed, calculatedObject, cvConversionValue(), 3);
-      return calculatedObject;
+      long start = StageTimer.start();
+      Mat converted = new Mat();
+      Imgproc.cvtColor(seed, converted, cvConversionValue(), 3);
+      StageTimer.record(Stage.COLOR_CONVERSION, start);
+      return converted;
     }
 
     protected abstract int cvConversionValue();
@@ -0,0 +1,108 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.Rect;
+
+/**
+ * A connected component is a continuous block of non-black pixels in a mask.
+ *
+ * Unlike a {@link Shape}, a component is not described by its contours. It only carries
+ * the statistics gathered while labeling the mask: how many pixels it has, the box
+ * bounding them, and the average color of those pixels in the image that was labeled
+ * alongside the mask.
+ *
+ * Holes in a component are not part of it, so they count towards neither its pixels
+ * nor its average color.
+ *
+ * @see ConnectedComponents
+ *
+ * @author cjmcentee
+ */
+public final class Component {
+
+    final int label;
+
+    int numberPixels;
+    int left, top, right, bottom; // inclusive
+    long blueSum, greenSum, redSum;
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    Component(int label) {
+        this.label = label;
+
+        left = Integer.MAX_VALUE;
+        top = Integer.MAX_VALUE;
+        right = Integer.MIN_VALUE;
+        bottom = Integer.MIN_VALUE;
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns the number of pixels in the component.
+     *
+     * @return      number of pixels in the component
+     */
+    public int numberPixels() {
+        return numberPixels;
+    }
+
+    /**
+     * Returns the smallest rectangle containing every pixel of the component.
+     *
+     * @return      bounding box of the component
+     */
+    public Rect boundingBox() {
+        return new Rect(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    /**
+     * Returns the average color of the component's pixels in the image it was labeled with.
+     *
+     * @return      average color of the component
+     */
+    public ColorPixel averagePixel() {
+        return ColorPixel.fromInt(
+                (int) (blueSum / numberPixels),
+                (int) (greenSum / numberPixels),
+                (int) (redSum / numberPixels));
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    void addRun(int row, int start, int end, byte colors[]) {
+        numberPixels += end - start + 1;
+
+        left = Math.min(left, start);
+        right = Math.max(right, end);
+        top = Math.min(top, row);
+        bottom = Math.max(bottom, row);
+
+        if (colors != null)
+            for (int pixel = 3 * start; pixel <= 3 * end; pixel += 3) {
+                blueSum  += colors[pixel] & 0xff;
+                greenSum += colors[pixel + 1] & 0xff;
+                redSum   += colors[pixel + 2] & 0xff;
+            }
+    }
+
+    void absorb(Component other) {
+        numberPixels += other.numberPixels;
+
+        left = Math.min(left, other.left);
+        right = Math.max(right, other.right);
+        top = Math.min(top, other.top);
+        bottom = Math.max(bottom, other.bottom);
+
+        blueSum += other.blueSum;
+        greenSum += other.greenSum;
+        redSum += other.redSum;
+    }
+}
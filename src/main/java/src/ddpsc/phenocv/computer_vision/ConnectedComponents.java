@@ -0,0 +1,305 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Labels the continuous blocks of non-black pixels in a mask and measures each of them.
+ *
+ * This is a lighter-weight alternative to {@link ShapeCollection} for when only the size,
+ * position and color of each block of pixels is needed. Instead of finding contours and
+ * drawing each shape back out to measure it, the mask is read one row at a time and split
+ * into horizontal runs of non-black pixels. Runs touching a run in the row above (including
+ * diagonally) are joined into the same component, and each component's pixel count,
+ * bounding box and color sums are gathered as its runs are found. Every statistic is
+ * ready after one pass over the mask.
+ *
+ * Only the runs are kept, not a label per pixel, so the memory used grows with how
+ * fragmented the mask is rather than with its size.
+ *
+ * Labeling takes the place of contour finding, so it's timed as
+ * {@link Stage#CONTOUR_EXTRACTION}.
+ *
+ * @see Component
+ *
+ * @author cjmcentee
+ */
+public final class ConnectedComponents {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final byte SHOW = (byte) 255;
+    private static final byte BLOCK = (byte) 0;
+    private static final Scalar BLACK = new Scalar(0);
+
+    private final int width;
+    private final int height;
+
+    // Runs in row order, each run is the pixels [start, end] of its row
+    private int numberRuns;
+    private int runRows[];
+    private int runStarts[];
+    private int runEnds[];
+    private int runLabels[];
+
+    // Union-find of provisional labels, each run starts with a provisional label
+    private int numberLabels;
+    private int parents[];
+    private List<Component> provisionalComponents;
+
+    private List<Component> components;
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    private ConnectedComponents(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        runRows = new int[INITIAL_CAPACITY];
+        runStarts = new int[INITIAL_CAPACITY];
+        runEnds = new int[INITIAL_CAPACITY];
+        runLabels = new int[INITIAL_CAPACITY];
+
+        parents = new int[INITIAL_CAPACITY];
+        provisionalComponents = new ArrayList<Component>();
+    }
+
+    /**
+     * Labels the components of a mask, measuring the average color of each one in the
+     * supplied image.
+     *
+     * The mask and image must be of the same dimensions.
+     *
+     * @param mask      mask to find the components of
+     * @param image     image to measure the color of the components in
+     * @return          the components of the mask
+     */
+    public static ConnectedComponents FromImage(GrayImage mask, ColorImage image) {
+        long start = StageTimer.start();
+        ConnectedComponents components = new ConnectedComponents(mask.width(), mask.height());
+        components.label(mask.image, image == null ? null : image.image);
+        StageTimer.record(Stage.CONTOUR_EXTRACTION, start);
+
+        return components;
+    }
+
+    /**
+     * Labels the components of a mask.
+     *
+     * Components found this way have no color, their average pixel is black.
+     *
+     * @param mask      mask to find the components of
+     * @return          the components of the mask
+     */
+    public static ConnectedComponents FromImage(GrayImage mask) {
+        return FromImage(mask, null);
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns every component of the mask.
+     *
+     * @return      components of the mask
+     */
+    public List<Component> components() {
+        return components;
+    }
+
+    /**
+     * Returns the size of the mask the components were labeled from.
+     *
+     * @return      size of the labeled mask
+     */
+    public Size size() {
+        return new Size(width, height);
+    }
+
+
+    /// ======================================================================
+    /// Conversion
+    /// ======================================================================
+
+    /**
+     * Returns a mask of the same dimensions as the labeled mask that shows only the pixels
+     * of the supplied components.
+     *
+     * The components must have come from this object.
+     *
+     * @param keep      components to show in the mask
+     * @return          mask of the supplied components
+     */
+    public GrayImage maskOf(Collection<Component> keep) {
+        boolean keptLabels[] = new boolean[numberLabels];
+        for (Component component : keep)
+            keptLabels[component.label] = true;
+
+        GrayImage maskImage = GrayImage.scratch(height, width);
+        Mat mask = maskImage.image;
+        mask.setTo(BLACK);
+        byte row[] = new byte[width];
+
+        int run = 0;
+        while (run < numberRuns) {
+            int rowIndex = runRows[run];
+            int rowBegin = run;
+            boolean rowHasPixels = false;
+
+            for (; run < numberRuns && runRows[run] == rowIndex; run++)
+                if (keptLabels[find(runLabels[run])]) {
+                    Arrays.fill(row, runStarts[run], runEnds[run] + 1, SHOW);
+                    rowHasPixels = true;
+                }
+
+            if (rowHasPixels) {
+                mask.put(rowIndex, 0, row);
+
+                for (int cleared = rowBegin; cleared < run; cleared++)
+                    Arrays.fill(row, runStarts[cleared], runEnds[cleared] + 1, BLOCK);
+            }
+        }
+
+        return maskImage;
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    private void label(Mat mask, Mat colors) {
+        byte maskRow[] = new byte[width];
+        byte colorRow[] = colors == null ? null : new byte[3 * width];
+
+        int previousRowBegin = 0;
+        int previousRowEnd = 0;
+
+        for (int row = 0; row < height; row++) {
+            mask.get(row, 0, maskRow);
+            if (colorRow != null)
+                colors.get(row, 0, colorRow);
+
+            int rowBegin = numberRuns;
+            int above = previousRowBegin; // first run of the previous row that can still touch
+
+            int column = 0;
+            while (column < width) {
+                if (maskRow[column] == 0) {
+                    column++;
+                    continue;
+                }
+
+                int start = column;
+                while (column < width && maskRow[column] != 0)
+                    column++;
+                int end = column - 1;
+
+                // Runs of the previous row that end before this one (diagonals included)
+                // can't touch this run or any later run of this row
+                while (above < previousRowEnd && runEnds[above] < start - 1)
+                    above++;
+
+                int label = -1;
+                for (int touching = above; touching < previousRowEnd && runStarts[touching] <= end + 1; touching++) {
+                    if (label == -1)
+                        label = find(runLabels[touching]);
+                    else
+                        label = union(label, runLabels[touching]);
+                }
+
+                if (label == -1)
+                    label = newLabel();
+
+                addRun(row, start, end, label);
+                provisionalComponents.get(label).addRun(row, start, end, colorRow);
+            }
+
+            previousRowBegin = rowBegin;
+            previousRowEnd = numberRuns;
+        }
+
+        resolveComponents();
+    }
+
+    private void resolveComponents() {
+        components = new ArrayList<Component>();
+
+        for (int label = 0; label < numberLabels; label++) {
+            int root = find(label);
+            if (root != label)
+                provisionalComponents.get(root).absorb(provisionalComponents.get(label));
+        }
+
+        for (int label = 0; label < numberLabels; label++)
+            if (find(label) == label)
+                components.add(provisionalComponents.get(label));
+
+        provisionalComponents = null;
+    }
+
+    private int newLabel() {
+        if (numberLabels == parents.length)
+            parents = Arrays.copyOf(parents, 2 * parents.length);
+
+        int label = numberLabels++;
+        parents[label] = label;
+        provisionalComponents.add(new Component(label));
+
+        return label;
+    }
+
+    private int find(int label) {
+        int root = label;
+        while (parents[root] != root)
+            root = parents[root];
+
+        // Path compression
+        while (parents[label] != root) {
+            int next = parents[label];
+            parents[label] = root;
+            label = next;
+        }
+
+        return root;
+    }
+
+    private int union(int label1, int label2) {
+        int root1 = find(label1);
+        int root2 = find(label2);
+
+        // Keep the older label as the root so components come out in scan order
+        int root = Math.min(root1, root2);
+        parents[root1] = root;
+        parents[root2] = root;
+
+        return root;
+    }
+
+    private void addRun(int row, int start, int end, int label) {
+        if (numberRuns == runRows.length) {
+            int capacity = 2 * runRows.length;
+            runRows = Arrays.copyOf(runRows, capacity);
+            runStarts = Arrays.copyOf(runStarts, capacity);
+            runEnds = Arrays.copyOf(runEnds, capacity);
+            runLabels = Arrays.copyOf(runLabels, capacity);
+        }
+
+        runRows[numberRuns] = row;
+        runStarts[numberRuns] = start;
+        runEnds[numberRuns] = end;
+        runLabels[numberRuns] = label;
+        numberRuns++;
+    }
+}
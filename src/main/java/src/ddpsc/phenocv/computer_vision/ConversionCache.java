@@ -0,0 +1,108 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the color space conversions of every live {@link ColorImage} within a shared budget of
+ * native memory, releasing the least recently used ones when it's exceeded.
+ *
+ * A conversion is made the first time it's borrowed, with
+ * {@link ColorImage#borrowConversion(ColorSpace)}, and kept after it's returned, so later
+ * borrows of the same image reuse it, be it back-projection then measurement or one training
+ * pass then another. Only returned conversions can be released to stay within the budget; a
+ * borrowed one is never released from under its borrower, so the budget is exceeded for as
+ * long as borrowed conversions alone exceed it. Conversions got through the older
+ * cvAs...Matrix() accessors are never returned, so they leave the cache and its budget: they're
+ * held by their image alone until it's released, or collected.
+ *
+ * The budget defaults to {@link ConversionCache#DEFAULT_BUDGET_BYTES}.
+ */
+public final class ConversionCache {
+
+    public static final long DEFAULT_BUDGET_BYTES = 512L * 1024 * 1024;
+
+    private static long budgetBytes = DEFAULT_BUDGET_BYTES;
+    private static long cachedBytes = 0;
+
+    // Every cached conversion, least recently borrowed first
+    private static final Map<ColorTypeFactory, Long> conversions =
+            new LinkedHashMap<ColorTypeFactory, Long>(16, 0.75f, true);
+
+    private ConversionCache() {}
+
+
+    /// ======================================================================
+    /// Budget
+    /// ======================================================================
+
+    /**
+     * Sets how many bytes of native memory the conversions of every live image may take
+     * together, releasing returned conversions until they're within it.
+     *
+     * @param bytes     budget in bytes
+     */
+    public static synchronized void setBudget(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("The conversion budget can't be negative: " + bytes);
+
+        budgetBytes = bytes;
+        evictOverBudget();
+    }
+
+    /**
+     * Returns how many bytes of native memory the conversions may take together.
+     *
+     * @return      budget in bytes
+     */
+    public static synchronized long budget() {
+        return budgetBytes;
+    }
+
+    /**
+     * Returns how many bytes of native memory the cached conversions take now, borrowed or not.
+     *
+     * @return      cached bytes
+     */
+    public static synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+
+    /// ======================================================================
+    /// Bookkeeping for ColorTypeFactory, under this class's lock
+    /// ======================================================================
+    static void added(ColorTypeFactory conversion, long bytes) {
+        conversions.put(conversion, bytes);
+        cachedBytes += bytes;
+        evictOverBudget();
+    }
+
+    static void used(ColorTypeFactory conversion) {
+        conversions.get(conversion); // moves it to the most recently used end
+    }
+
+    static void returned() {
+        evictOverBudget(); // it may be the one the cache was waiting on
+    }
+
+    static void removed(ColorTypeFactory conversion) {
+        Long bytes = conversions.remove(conversion);
+        if (bytes != null)
+            cachedBytes -= bytes;
+    }
+
+    private static void evictOverBudget() {
+        Iterator<Map.Entry<ColorTypeFactory, Long>> leastRecent = conversions.entrySet().iterator();
+        while (cachedBytes > budgetBytes && leastRecent.hasNext()) {
+            Map.Entry<ColorTypeFactory, Long> conversion = leastRecent.next();
+            if (conversion.getKey().isBorrowed())
+                continue;
+
+            leastRecent.remove();
+            cachedBytes -= conversion.getValue();
+            conversion.getKey().evict();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package src.ddpsc.phenocv.computer_vision;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.highgui.Highgui;
@@ -89,6 +90,21 @@ public class GrayImage extends Image {
         return show;
     }
 
+    /**
+     * Generates a GrayImage of the supplied size whose matrix is borrowed from this thread's
+     * {@link ScratchPool} and goes back to it when released. Its pixels are undefined.
+     *
+     * @param rows      height of the returned image
+     * @param columns   width of the returned image
+     * @return          an image of undefined pixels
+     */
+    static GrayImage scratch(int rows, int columns) {
+        GrayImage scratch = new GrayImage(ScratchPool.borrow(rows, columns, CvType.CV_8UC1));
+        scratch.scratch = true;
+
+        return scratch;
+    }
+
     /**
      * Generates a GrayImage that behaves as a mask that reveals all pixels.
      *
@@ -128,8 +144,12 @@ public class GrayImage extends Image {
         int numberPixels = pixels.length / 1;
         int columns = width;
         int rows = numberPixels / columns;
+
+        release();
+
         image = new Mat(rows, columns, CvType.CV_8UC1);
         image.put(0, 0, pixels);
+        LeakTracker.allocated(this, image);
     }
 
     /**
@@ -160,6 +180,16 @@ public class GrayImage extends Image {
         return new GrayImage(copy);
     }
 
+    @Override
+    public Image crop(Rect region) {
+        Mat regionView = image.submat(region);
+        Mat cropped = new Mat();
+        regionView.copyTo(cropped);
+        regionView.release();
+
+        return new GrayImage(cropped);
+    }
+
     /**
      * Returns a masked form of this image. Any pixels below the threshold value
      * are treated as block (black), and above as show (white).
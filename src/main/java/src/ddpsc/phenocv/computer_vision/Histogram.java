@@ -1,12 +1,20 @@
 package src.ddpsc.phenocv.computer_vision;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import src.ddpsc.phenocv.utility.Copy;
-import src.ddpsc.phenocv.utility.ReleaseContainer;
+import src.ddpsc.phenocv.utility.ReleaseScope;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
@@ -43,6 +51,7 @@ public final class Histogram implements Releasable {
         this.histogramPartition = histogramPartition;
 
         histogram = histogramMat;
+        LeakTracker.allocated(this, histogram);
     }
 
     /**
@@ -55,6 +64,7 @@ public final class Histogram implements Releasable {
         Histogram histogram = new Histogram();
         histogram.histogramPartition = histogramPartition;
         histogram.histogram = new Mat();
+        LeakTracker.allocated(histogram, histogram.histogram);
 
         return histogram;
     }
@@ -70,11 +80,26 @@ public final class Histogram implements Releasable {
         Histogram copy = new Histogram();
         copy.histogramPartition = histogramPartition;
         copy.histogram = Copy.matrix(histogram);
+        LeakTracker.allocated(copy, copy.histogram);
 
         return copy;
     }
 
 
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns the color space and number of bins of this histogram.
+     *
+     * @return      partition of this histogram
+     */
+    public HistogramPartition partition() {
+        return histogramPartition;
+    }
+
+
     /// ======================================================================
     /// Image Manipulation
     /// ======================================================================
@@ -94,22 +119,42 @@ public final class Histogram implements Releasable {
      */
     public GrayImage backProjectionOf(ColorImage image) {
 
-         Mat backProjectedImage = new Mat();
-
-        List<Mat> imageMatrix = Arrays.asList(image.cvAsChannel(histogramPartition));
-        Imgproc.calcBackProject(
-                imageMatrix,
-                histogramPartition.indices(),
-                histogram,
-                backProjectedImage,
-                histogramPartition.ranges(),
-                NO_SCALING);
-
-        ReleaseContainer.releaseMatrices(imageMatrix);
+        Mat backProjectedImage = new Mat();
+
+        List<Mat> imageMatrix = Arrays.asList(image.borrowConversion(histogramPartition.colorSpace));
+        try (ReleaseScope scope = new ReleaseScope()) {
+            long start = StageTimer.start(); // color conversion is timed on its own
+            Imgproc.calcBackProject(
+                    imageMatrix,
+                    scope.add(histogramPartition.indices()),
+                    histogram,
+                    backProjectedImage,
+                    scope.add(histogramPartition.ranges()),
+                    NO_SCALING);
+            StageTimer.record(Stage.BACK_PROJECTION, start);
+        }
+        finally {
+            image.returnConversion(histogramPartition.colorSpace);
+        }
 
         return new GrayImage(backProjectedImage);
     }
 
+    /**
+     * Compiles this histogram into a table of every BGR color it back-projects onto.
+     *
+     * Masking an image with the table gives the same result as back-projecting this
+     * histogram onto it and thresholding, without any color conversion. Compile the
+     * table once the histogram is done changing.
+     *
+     * @see HistogramLookupTable
+     *
+     * @return      lookup table of this histogram
+     */
+    public HistogramLookupTable lookupTable() {
+        return HistogramLookupTable.compile(this);
+    }
+
     /**
      * Creates a histogram from a {@link ColorImage} and the pixels its mask lets show through.
      *
@@ -125,16 +170,19 @@ public final class Histogram implements Releasable {
     public static Histogram fromImage(HistogramPartition histogramPartition, ColorImage image, GrayImage mask) {
 
         Mat histogram = new Mat();
-        List<Mat> convertedMatrix = Arrays.asList(image.cvAsChannel(histogramPartition));
-        Imgproc.calcHist(
-                convertedMatrix,
-                histogramPartition.indices(),
-                mask.image,
-                histogram,
-                histogramPartition.sizes(),
-                histogramPartition.ranges());
-
-        ReleaseContainer.releaseMatrices(convertedMatrix);
+        List<Mat> convertedMatrix = Arrays.asList(image.borrowConversion(histogramPartition.colorSpace));
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Imgproc.calcHist(
+                    convertedMatrix,
+                    scope.add(histogramPartition.indices()),
+                    mask.image,
+                    histogram,
+                    scope.add(histogramPartition.sizes()),
+                    scope.add(histogramPartition.ranges()));
+        }
+        finally {
+            image.returnConversion(histogramPartition.colorSpace);
+        }
 
         return new Histogram(histogramPartition, histogram);
     }
@@ -147,7 +195,9 @@ public final class Histogram implements Releasable {
      * @return                          a histogram describing the image
      */
     public static Histogram fromImage(HistogramPartition histogramPartition, ColorImage image) {
-        return fromImage(histogramPartition, image, GrayImage.maskShowAll(image.size()));
+        try (ReleaseScope scope = new ReleaseScope()) {
+            return fromImage(histogramPartition, image, scope.add(GrayImage.maskShowAll(image.size())));
+        }
     }
 
     /**
@@ -164,17 +214,22 @@ public final class Histogram implements Releasable {
      */
     public void addImageData(ColorImage image, GrayImage mask) {
 
-        List<Mat> convertedMatrix = Arrays.asList(image.cvAsChannel(histogramPartition));
-        Imgproc.calcHist(
-                convertedMatrix,
-                histogramPartition.indices(),
-                mask.image,
-                this.histogram,
-                histogramPartition.sizes(),
-                histogramPartition.ranges(),
-                true);
+        List<Mat> convertedMatrix = Arrays.asList(image.borrowConversion(histogramPartition.colorSpace));
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Imgproc.calcHist(
+                    convertedMatrix,
+                    scope.add(histogramPartition.indices()),
+                    mask.image,
+                    this.histogram,
+                    scope.add(histogramPartition.sizes()),
+                    scope.add(histogramPartition.ranges()),
+                    true);
+        }
+        finally {
+            image.returnConversion(histogramPartition.colorSpace);
+        }
 
-        ReleaseContainer.releaseMatrices(convertedMatrix);
+        LeakTracker.allocated(this, histogram); // bins are made on the first data added
     }
 
     /**
@@ -186,7 +241,9 @@ public final class Histogram implements Releasable {
      * @param image             image to get histogram data from
      */
     public void addImageData(ColorImage image) {
-        addImageData(image, GrayImage.maskShowAll(image.size()));
+        try (ReleaseScope scope = new ReleaseScope()) {
+            addImageData(image, scope.add(GrayImage.maskShowAll(image.size())));
+        }
     }
 
 
@@ -198,12 +255,16 @@ public final class Histogram implements Releasable {
      */
     public void combineWith(Histogram mergingHistogram) {
 
-        if (mergingHistogram == null || mergingHistogram.histogram == null)
+        if (mergingHistogram == null || mergingHistogram.histogram == null || mergingHistogram.histogram.empty())
             return;
 
-        if (this.histogram == null) { // not same as this being null, this.histogram is Matrix field
+        if (this.histogram == null || this.histogram.empty()) { // not same as this being null, this.histogram is Matrix field
+            if (this.histogram != null)
+                this.histogram.release();
+
             this.histogramPartition = mergingHistogram.histogramPartition;
             this.histogram = Copy.matrix(mergingHistogram.histogram);
+            LeakTracker.allocated(this, histogram);
 
             return;
         }
@@ -217,6 +278,77 @@ public final class Histogram implements Releasable {
         Imgproc.morphologyEx(histogram, histogram, Imgproc.MORPH_OPEN, kernel);
     }
 
+    /// ======================================================================
+    /// Persistence
+    /// ======================================================================
+
+    /**
+     * Writes this histogram's partition and bin values to the supplied stream.
+     *
+     * Only non-empty bins are written. Bins hold pixel counts, so their values are
+     * written as whole numbers.
+     *
+     * @param out               stream to write to
+     * @throws IOException      if the stream can't be written to
+     */
+    public void save(DataOutputStream out) throws IOException {
+        out.writeUTF(histogramPartition.colorSpace.name());
+        out.writeInt(histogramPartition.numberBins);
+
+        float bins[] = histogram.empty() ? new float[0] : binValues();
+
+        int filledBins = 0;
+        for (float bin : bins)
+            if (bin > 0)
+                filledBins++;
+
+        out.writeInt(filledBins);
+        for (int i = 0; i < bins.length; i++)
+            if (bins[i] > 0) {
+                out.writeInt(i);
+                out.writeLong((long) bins[i]);
+            }
+    }
+
+    /**
+     * Reads a histogram written by {@link Histogram#save(DataOutputStream)}.
+     *
+     * @param in                stream to read from
+     * @return                  the histogram read
+     * @throws IOException      if the stream can't be read or doesn't hold a histogram
+     */
+    public static Histogram load(DataInputStream in) throws IOException {
+        ColorSpace colorSpace;
+        try {
+            colorSpace = ColorSpace.valueOf(in.readUTF());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Unknown histogram color space.", e);
+        }
+
+        int numberBins = in.readInt();
+        int filledBins = in.readInt();
+        if (numberBins <= 0 || filledBins < 0 || filledBins > numberBins * numberBins * numberBins)
+            throw new IOException("Histogram bin counts are corrupt.");
+
+        int binIndices[] = new int[filledBins];
+        long binValues[] = new long[filledBins];
+        for (int i = 0; i < filledBins; i++) {
+            binIndices[i] = in.readInt();
+            binValues[i] = in.readLong();
+
+            if (binIndices[i] < 0 || binIndices[i] >= numberBins * numberBins * numberBins || binValues[i] < 0)
+                throw new IOException("Histogram bins are corrupt.");
+        }
+
+        HistogramPartition histogramPartition = new HistogramPartition(colorSpace, numberBins);
+        if (filledBins == 0)
+            return blank(histogramPartition);
+
+        return new Histogram(histogramPartition, histogramMatrix(histogramPartition, binIndices, binValues));
+    }
+
+
     /// ======================================================================
     /// Releasable
     /// ======================================================================
@@ -225,6 +357,133 @@ public final class Histogram implements Releasable {
      * Releases the native memory associated with this object.
      */
     public void release() {
+        LeakTracker.released(this);
         histogram.release();
     }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+
+    // The OpenCV java bindings can't get or put the values of a 3D matrix, so bins are
+    // read by back-projecting the histogram onto the center color of every bin, and
+    // written by building histograms of those center colors.
+
+    /**
+     * Returns the value of every bin, the bin (i, j, k) at index (i*bins + j)*bins + k.
+     */
+    private float[] binValues() {
+        int numberBins = histogramPartition.numberBins;
+        int slice = numberBins * numberBins;
+
+        float bins[] = new float[slice * numberBins];
+        float centers[] = new float[3 * slice];
+        float projection[] = new float[slice];
+
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Mat probe = scope.add(new Mat(numberBins, numberBins, CvType.CV_32FC3));
+            Mat backProjection = scope.add(new Mat());
+            MatOfInt indices = scope.add(histogramPartition.indices());
+            MatOfFloat ranges = scope.add(histogramPartition.ranges());
+
+            // One slice of bins at a time to keep the probe image small
+            for (int first = 0; first < numberBins; first++) {
+                for (int second = 0; second < numberBins; second++)
+                    for (int third = 0; third < numberBins; third++) {
+                        int pixel = 3 * (second * numberBins + third);
+                        centers[pixel]     = binCenter(first, numberBins);
+                        centers[pixel + 1] = binCenter(second, numberBins);
+                        centers[pixel + 2] = binCenter(third, numberBins);
+                    }
+                probe.put(0, 0, centers);
+
+                Imgproc.calcBackProject(
+                        Arrays.asList(probe),
+                        indices,
+                        histogram,
+                        backProjection,
+                        ranges,
+                        NO_SCALING);
+
+                backProjection.get(0, 0, projection);
+                System.arraycopy(projection, 0, bins, first * slice, slice);
+            }
+        }
+
+        return bins;
+    }
+
+    /**
+     * Builds a histogram matrix with the supplied bins set to the supplied values and every
+     * other bin empty.
+     *
+     * Each bit of the values is built as its own histogram with a count of one in every bin
+     * that has that bit set, the bit histograms are then summed with their place values.
+     */
+    private static Mat histogramMatrix(HistogramPartition histogramPartition, int binIndices[], long binValues[]) {
+        Mat histogram = histogramOfBins(histogramPartition, new int[0]);
+
+        for (int bit = 0; bit < Long.SIZE - 1; bit++) {
+            int setBins = 0;
+            for (long value : binValues)
+                if ((value >> bit & 1) == 1)
+                    setBins++;
+
+            if (setBins == 0)
+                continue;
+
+            int bitBins[] = new int[setBins];
+            for (int i = 0, set = 0; i < binValues.length; i++)
+                if ((binValues[i] >> bit & 1) == 1)
+                    bitBins[set++] = binIndices[i];
+
+            Mat bitHistogram = histogramOfBins(histogramPartition, bitBins);
+            Core.addWeighted(histogram, 1, bitHistogram, (double) (1L << bit), 0, histogram);
+            bitHistogram.release();
+        }
+
+        return histogram;
+    }
+
+    /**
+     * A histogram holding a count of one in each of the supplied bins.
+     */
+    private static Mat histogramOfBins(HistogramPartition histogramPartition, int binIndices[]) {
+        int numberBins = histogramPartition.numberBins;
+        int slice = numberBins * numberBins;
+
+        float centers[] = new float[3 * Math.max(binIndices.length, 1)];
+        for (int i = 0; i < binIndices.length; i++) {
+            int bin = binIndices[i];
+            centers[3*i]     = binCenter(bin / slice, numberBins);
+            centers[3*i + 1] = binCenter(bin / numberBins % numberBins, numberBins);
+            centers[3*i + 2] = binCenter(bin % numberBins, numberBins);
+        }
+
+        Mat histogram = new Mat();
+        try (ReleaseScope scope = new ReleaseScope()) {
+            // calcHist needs at least one pixel, a blocked pixel is counted nowhere
+            int numberPixels = Math.max(binIndices.length, 1);
+            Mat mask = scope.add(new Mat(numberPixels, 1, CvType.CV_8UC1));
+            mask.setTo(binIndices.length == 0 ? ShapeImageFactory.BLACK : ShapeImageFactory.WHITE);
+
+            Mat probe = scope.add(new Mat(numberPixels, 1, CvType.CV_32FC3));
+            probe.put(0, 0, centers);
+
+            Imgproc.calcHist(
+                    Arrays.asList(probe),
+                    scope.add(histogramPartition.indices()),
+                    mask,
+                    histogram,
+                    scope.add(histogramPartition.sizes()),
+                    scope.add(histogramPartition.ranges()));
+        }
+
+        return histogram;
+    }
+
+    private static float binCenter(int bin, int numberBins) {
+        return (bin + 0.5f) * HistogramPartition.RANGE_MAX / numberBins;
+    }
 }
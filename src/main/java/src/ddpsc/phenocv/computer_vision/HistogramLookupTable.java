@@ -0,0 +1,160 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
+
+/**
+ * A {@link Histogram} compiled down to a yes/no answer for every possible BGR color.
+ *
+ * Back-projecting a histogram onto an image means converting the whole image into the
+ * histogram's color space and then looking every converted pixel up in the histogram.
+ * Once a histogram stops changing, the answer for any one BGR color never changes either,
+ * so this table asks the question once for all 2^24 colors up front and stores the answers
+ * as bits (2 MB). Masking an image then takes one table lookup per pixel, with no color
+ * conversion and no intermediate images.
+ *
+ * A color is in the table when its back-projection survives {@link GrayImage#threshold()},
+ * so {@link HistogramLookupTable#maskOf(ColorImage)} gives the same mask as back-projecting
+ * the histogram and thresholding the result.
+ *
+ * The table is a snapshot: changes made to the histogram after compiling it aren't seen.
+ *
+ * @author cjmcentee
+ */
+public final class HistogramLookupTable {
+
+    private static final int CHANNEL_VALUES = 256;
+    private static final int NUMBER_COLORS = CHANNEL_VALUES * CHANNEL_VALUES * CHANNEL_VALUES;
+
+    private static final byte SHOW = (byte) 255;
+    private static final byte BLOCK = (byte) 0;
+
+    // Bit per color, indexed by (blue << 16) | (green << 8) | red
+    private final long members[];
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    private HistogramLookupTable() {
+        members = new long[NUMBER_COLORS / Long.SIZE];
+    }
+
+    /**
+     * Compiles the supplied histogram into a lookup table.
+     *
+     * Colors are back-projected one blue value at a time, so compiling never needs more than
+     * a 256x256 image of native memory.
+     *
+     * @param histogram     histogram to compile
+     * @return              lookup table of the colors the histogram back-projects onto
+     */
+    static HistogramLookupTable compile(Histogram histogram) {
+        HistogramLookupTable table = new HistogramLookupTable();
+
+        byte colors[] = new byte[CHANNEL_VALUES * CHANNEL_VALUES * 3];
+        byte projection[] = new byte[CHANNEL_VALUES * CHANNEL_VALUES];
+
+        for (int blue = 0; blue < CHANNEL_VALUES; blue++) {
+
+            // Every green-red combination with this blue, one row per green value
+            for (int green = 0; green < CHANNEL_VALUES; green++) {
+                for (int red = 0; red < CHANNEL_VALUES; red++) {
+                    int pixel = 3 * (green * CHANNEL_VALUES + red);
+                    colors[pixel]     = (byte) blue;
+                    colors[pixel + 1] = (byte) green;
+                    colors[pixel + 2] = (byte) red;
+                }
+            }
+
+            Mat colorsMatrix = new Mat(CHANNEL_VALUES, CHANNEL_VALUES, CvType.CV_8UC3);
+            colorsMatrix.put(0, 0, colors);
+            ColorImage colorsImage = new ColorImage(colorsMatrix);
+
+            GrayImage backProjection = histogram.backProjectionOf(colorsImage);
+            backProjection.threshold();
+            backProjection.image.get(0, 0, projection);
+
+            int blueOffset = blue << 16;
+            for (int greenRed = 0; greenRed < projection.length; greenRed++)
+                if (projection[greenRed] != BLOCK)
+                    table.add(blueOffset | greenRed);
+
+            backProjection.release();
+            colorsImage.release();
+        }
+
+        return table;
+    }
+
+
+    /// ======================================================================
+    /// Image Manipulation
+    /// ======================================================================
+
+    /**
+     * Returns a mask of the supplied image that shows the pixels whose color is in this table
+     * and blocks every other pixel.
+     *
+     * The mask is of the same dimensions as the image.
+     *
+     * @param image     image to mask
+     * @return          mask of the pixels in this table
+     */
+    public GrayImage maskOf(ColorImage image) {
+        long start = StageTimer.start();
+        int width = image.width();
+        int height = image.height();
+
+        // A row at a time, so only the mask is full size, and it's reused from the last image
+        byte pixels[] = new byte[width * 3];
+        byte maskRow[] = new byte[width];
+        GrayImage mask = GrayImage.scratch(height, width);
+
+        for (int row = 0; row < height; row++) {
+            image.image.get(row, 0, pixels);
+
+            for (int column = 0, pixel = 0; column < width; column++, pixel += 3) {
+                int color = (pixels[pixel] & 0xff) << 16
+                        | (pixels[pixel + 1] & 0xff) << 8
+                        | (pixels[pixel + 2] & 0xff);
+
+                maskRow[column] = contains(color) ? SHOW : BLOCK;
+            }
+
+            mask.image.put(row, 0, maskRow);
+        }
+        StageTimer.record(Stage.BACK_PROJECTION, start);
+
+        return mask;
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Whether the supplied BGR color is one the histogram back-projects onto.
+     *
+     * @param color     color to look up
+     * @return          true if the color is in the table
+     */
+    public boolean contains(ColorPixel color) {
+        return contains(color.blue << 16 | color.green << 8 | color.red);
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    private boolean contains(int color) {
+        return (members[color >>> 6] & (1L << color)) != 0;
+    }
+
+    private void add(int color) {
+        members[color >>> 6] |= 1L << color;
+    }
+}
@@ -30,6 +30,7 @@ import org.opencv.core.MatOfInt;
 public class HistogramPartition {
 
     private static final int DEFAULT_BINS = 255;
+    static final float RANGE_MAX = 255;
 
     public final ColorSpace colorSpace;
     protected final int numberBins;
@@ -48,12 +49,30 @@ public class HistogramPartition {
         return colorSpace.name();
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof HistogramPartition))
+            return false;
+
+        HistogramPartition partition = (HistogramPartition) other;
+        return colorSpace == partition.colorSpace && numberBins == partition.numberBins;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * colorSpace.hashCode() + numberBins;
+    }
+
+    // The header matrices below are new on every call, to be released by the caller
+
     MatOfInt sizes() {
         return new MatOfInt(numberBins, numberBins, numberBins);
     }
 
     MatOfFloat ranges() {
-        return new MatOfFloat(0, 255, 0, 255, 0, 255);
+        return new MatOfFloat(0, RANGE_MAX, 0, RANGE_MAX, 0, RANGE_MAX);
     }
 
     MatOfInt indices() {
@@ -6,6 +6,8 @@ import org.opencv.imgproc.Imgproc;
 import src.ddpsc.phenocv.debug.Readable;
 import src.ddpsc.phenocv.utility.Directory;
 import src.ddpsc.phenocv.utility.ReleaseContainer;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -24,18 +26,26 @@ import java.util.List;
  */
 public abstract class Image implements Writable, Releasable {
 
+    private static final Scalar BLACK = Scalar.all(0);
+    private static final Scalar BLOCKED = new Scalar(0);
+
     protected Mat image;
 
+    // Whether the matrix was borrowed from the ScratchPool, and goes back to it on release
+    boolean scratch;
+
     /// ======================================================================
     /// Constructors
     /// ======================================================================
 
     protected Image() {
         image = new Mat();
+        LeakTracker.allocated(this, image);
     }
 
     protected Image(Mat mat) {
         image = mat;
+        LeakTracker.allocated(this, image);
     }
 
     protected Image(int width, int height, int colorType) {
@@ -43,6 +53,7 @@ public abstract class Image implements Writable, Releasable {
         image.setTo(ShapeImageFactory.BLACK); // initialization isn't wholly black, it has noise
         // I know you think this line is unnecessary and wasteful but you're wrong, trust me. Don't delete it
         // Otherwise you'll get weird noise in the image for no apparent reason
+        LeakTracker.allocated(this, image);
     }
 
     protected Image(String filename, int imageType) {
@@ -52,6 +63,7 @@ public abstract class Image implements Writable, Releasable {
             image = Highgui.imread(filename, imageType);
         else
             System.out.println("File " + filename + " cannot be loaded as an image because it doesn't exist.");
+        LeakTracker.allocated(this, image);
     }
 
 
@@ -77,26 +89,84 @@ public abstract class Image implements Writable, Releasable {
      */
     @Override
     public void writeTo(String filename) {
+        writeTo(filename, ImageFormat.DEFAULT_PNG);
+    }
+
+    /**
+     * Writes an image to the specified file with the encoder settings of the
+     * supplied format, as {@link Image#writeTo(String)} does otherwise.
+     *
+     * @param filename      filename of where to save the image, ending in the format's extension
+     * @param format        format whose encoder settings to write with
+     */
+    @Override
+    public void writeTo(String filename, ImageFormat format) {
         Directory.EnsurePathExistsFor(filename);
+        MatOfInt parameters = format.cvParameters();
+
+        if (image.channels() == 2) {
+            Mat threeChannelMatrix = threeChannelMatrix();
+            Highgui.imwrite(filename, threeChannelMatrix, parameters);
+            threeChannelMatrix.release();
+        }
+        else
+            Highgui.imwrite(filename, image, parameters);
+
+        parameters.release();
+    }
+
+    /**
+     * Encodes this image into the bytes of an image file of the supplied extension
+     * without touching the filesystem.
+     *
+     * The extension selects the codec the same way the filename does in
+     * {@link Image#writeTo(String)}, e.g. ".png" or ".jpg". The same channel
+     * restrictions apply.
+     *
+     * @param extension     file extension of the codec to encode with, including the dot
+     * @return              encoded image file contents
+     */
+    public byte[] encode(String extension) {
+        MatOfByte buffer = new MatOfByte();
 
         if (image.channels() == 2) {
-            Mat flatRed = new Mat(image.size(), CvType.CV_8UC1);
+            Mat threeChannelMatrix = threeChannelMatrix();
+            Highgui.imencode(extension, threeChannelMatrix, buffer);
+            threeChannelMatrix.release();
+        }
+        else
+            Highgui.imencode(extension, image, buffer);
 
-            List<Mat> blueGreenChannels = new ArrayList<Mat>(2);
-            Core.split(image, blueGreenChannels);
-            blueGreenChannels.add(flatRed);
+        byte encoded[] = buffer.toArray();
+        buffer.release();
 
-            Mat threeChannelMatrix = new Mat();
-            Core.merge(blueGreenChannels, threeChannelMatrix);
+        return encoded;
+    }
 
-            Highgui.imwrite(filename, threeChannelMatrix);
+    /**
+     * Encodes this image into the bytes of an image file of the supplied format, codec
+     * and encoder settings both, without touching the filesystem.
+     *
+     * @param format        format to encode with
+     * @return              encoded image file contents
+     */
+    public byte[] encode(ImageFormat format) {
+        MatOfByte buffer = new MatOfByte();
+        MatOfInt parameters = format.cvParameters();
 
-            flatRed.release();
-            ReleaseContainer.releaseMatrices(blueGreenChannels);
+        if (image.channels() == 2) {
+            Mat threeChannelMatrix = threeChannelMatrix();
+            Highgui.imencode(format.extension(), threeChannelMatrix, buffer, parameters);
             threeChannelMatrix.release();
         }
         else
-            Highgui.imwrite(filename, image);
+            Highgui.imencode(format.extension(), image, buffer, parameters);
+
+        byte encoded[] = buffer.toArray();
+        buffer.release();
+        parameters.release();
+
+        return encoded;
     }
 
 
@@ -111,7 +181,14 @@ public abstract class Image implements Writable, Releasable {
      */
     @Override
     public void release() {
-        image.release();
+        LeakTracker.released(this);
+        if (scratch) {
+            ScratchPool.giveBack(image);
+            image = new Mat(); // so releasing again can't give it back twice
+            scratch = false;
+        }
+        else
+            image.release();
     }
 
 
@@ -126,12 +203,14 @@ public abstract class Image implements Writable, Releasable {
      * @see GrayImage
      */
     public void maskWith(GrayImage mask) {
-        Mat maskedMatrix = new Mat();
-        image.copyTo(maskedMatrix, mask.image);
-
-        Mat oldImage = image;
-        image = maskedMatrix;
-        oldImage.release();
+        // Blacked out in place, rather than copied out through the mask, so no full-size
+        // image is allocated
+        Mat blocked = ScratchPool.borrow(mask.image.rows(), mask.image.cols(), CvType.CV_8UC1);
+        Core.compare(mask.image, BLOCKED, blocked, Core.CMP_EQ);
+        image.setTo(BLACK, blocked);
+        ScratchPool.giveBack(blocked);
+
+        pixelsChanged();
     }
 
     /**
@@ -180,10 +259,14 @@ public abstract class Image implements Writable, Releasable {
      * @param strength strength of filter
      */
     public void medianFilter(int strength) {
+        long start = StageTimer.start();
         if (strength % 2 == 0)
             Imgproc.medianBlur(image, image, strength + 1);
         else
             Imgproc.medianBlur(image, image, strength);
+        StageTimer.record(Stage.MEDIAN_FILTER, start);
+
+        pixelsChanged();
     }
 
 
@@ -198,16 +281,46 @@ public abstract class Image implements Writable, Releasable {
      */
     public abstract Image copy();
 
+    /**
+     * Deep copy of the supplied region of the image
+     *
+     * The region must lie within the image.
+     *
+     * @param region    region of the image to copy
+     * @return          copy of the region, the size of the region
+     */
+    public abstract Image crop(Rect region);
+
 
     /// ======================================================================
     /// Properties
     /// ======================================================================
+
+    /**
+     * Returns a copy of every pixel of the image, a row after the other.
+     *
+     * To scan the pixels without copying the whole image, use {@link Image#pixelRows()}.
+     *
+     * @return      copy of the pixels, the number of pixels times channels long
+     */
     public byte[] pixels() {
         byte pixels[] = new byte[numberPixels() * image.channels()];
         image.get(0, 0, pixels);
         return pixels;
     }
 
+    /**
+     * Returns a cursor reading the pixels of the image a row at a time into a single row
+     * buffer, the same pixels as {@link Image#pixels()} without copying the whole image.
+     *
+     * @see PixelRows
+     *
+     * @return      cursor before the first row
+     */
+    public PixelRows pixelRows() {
+        return new PixelRows(this);
+    }
+
     public abstract void setPixels(byte[] pixels, int width);
 
     /**
@@ -279,6 +392,34 @@ public abstract class Image implements Writable, Releasable {
     /// ======================================================================
     /// Helper Methods
     /// ======================================================================
+
+    /**
+     * Called after the pixels are changed in place, so anything calculated from them can be
+     * forgotten.
+     */
+    void pixelsChanged() {}
+
+    /**
+     * Displays a 2 channel image as a colored image in the blue-green channels.
+     *
+     * @return      new 3 channel matrix, must be released by the caller
+     */
+    private Mat threeChannelMatrix() {
+        Mat flatRed = new Mat(image.size(), CvType.CV_8UC1);
+        flatRed.setTo(ShapeImageFactory.BLACK);
+
+        List<Mat> blueGreenChannels = new ArrayList<Mat>(2);
+        Core.split(image, blueGreenChannels);
+        blueGreenChannels.add(flatRed);
+
+        Mat threeChannelMatrix = new Mat();
+        Core.merge(blueGreenChannels, threeChannelMatrix);
+
+        ReleaseContainer.releaseMatrices(blueGreenChannels); // includes flatRed
+
+        return threeChannelMatrix;
+    }
+
     String debugString() {
         String debug = "Image Dimensions: " + width() + ", " + height()
                 + "\nImage Pixel Type: " + Readable.type(image.type());
@@ -0,0 +1,203 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.highgui.Highgui;
+
+import java.util.Arrays;
+
+/**
+ * The codec an image is encoded with and the settings its encoder is given, such as the
+ * compression level of a PNG or the quality of a JPEG.
+ *
+ * Formats are described by their codec's name optionally followed by a colon and a setting:
+ *      png         PNG with OpenCV's default settings
+ *      png:6       PNG at zlib compression level 6, from 0 to 9
+ *      jpeg:90     JPEG at quality 90, from 0 to 100, 95 if left out
+ *      webp        lossless WebP
+ *      webp:80     lossy WebP at quality 80, from 1 to 100
+ *
+ * OpenCV's default PNG settings are its fastest: only the simplest row filter and the fastest
+ * zlib level. Giving a compression level also turns on adaptive row filtering, which makes
+ * smaller files but takes a few times longer to encode, at any level. JPEG encodes faster and
+ * smaller still, at the cost of exact pixel values.
+ *
+ * WebP is only available when the native OpenCV library was built with it, see
+ * {@link ImageFormat#isSupported()}.
+ *
+ * @see Writable
+ */
+public final class ImageFormat {
+
+    /** PNG with OpenCV's default settings, what images are written as unless told otherwise. */
+    public static final ImageFormat DEFAULT_PNG = new ImageFormat("png", ".png");
+
+    private static final int DEFAULT_JPEG_QUALITY = 95;
+
+    // The 2.4 Java bindings leave out the WebP setting, this is CV_IMWRITE_WEBP_QUALITY,
+    // and any quality above 100 is lossless
+    private static final int WEBP_QUALITY = 64;
+    private static final int WEBP_LOSSLESS = 101;
+
+    private final String description;
+    private final String extension;
+    private final int parameters[];
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    private ImageFormat(String description, String extension, int... parameters) {
+        this.description = description;
+        this.extension = extension;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Returns PNG at the supplied compression level.
+     *
+     * @param compressionLevel      zlib compression level, 0 for none to 9 for the most
+     * @return                      PNG format
+     */
+    public static ImageFormat png(int compressionLevel) {
+        checkRange("PNG compression level", compressionLevel, 0, 9);
+        return new ImageFormat("png:" + compressionLevel, ".png", Highgui.CV_IMWRITE_PNG_COMPRESSION, compressionLevel);
+    }
+
+    /**
+     * Returns JPEG at the supplied quality.
+     *
+     * @param quality       0 for the smallest and worst to 100 for the largest and best
+     * @return              JPEG format
+     */
+    public static ImageFormat jpeg(int quality) {
+        checkRange("JPEG quality", quality, 0, 100);
+        return new ImageFormat("jpeg:" + quality, ".jpg", Highgui.CV_IMWRITE_JPEG_QUALITY, quality);
+    }
+
+    /**
+     * Returns lossy WebP at the supplied quality.
+     *
+     * @param quality       1 for the smallest and worst to 100 for the largest and best
+     * @return              WebP format
+     */
+    public static ImageFormat webp(int quality) {
+        checkRange("WebP quality", quality, 1, 100);
+        return new ImageFormat("webp:" + quality, ".webp", WEBP_QUALITY, quality);
+    }
+
+    /**
+     * Returns lossless WebP.
+     *
+     * @return      lossless WebP format
+     */
+    public static ImageFormat webpLossless() {
+        return new ImageFormat("webp", ".webp", WEBP_QUALITY, WEBP_LOSSLESS);
+    }
+
+    /**
+     * Returns the format of the supplied description, for example "png:1" or "jpeg:90".
+     *
+     * @param description                   codec name, optionally followed by a colon and setting
+     * @return                              described format
+     * @throws IllegalArgumentException     if the codec is unknown or the setting is out of range
+     */
+    public static ImageFormat parse(String description) {
+        String parts[] = description.trim().toLowerCase().split(":", 2);
+        String codec = parts[0];
+        Integer setting = null;
+        if (parts.length == 2) {
+            try {
+                setting = Integer.parseInt(parts[1].trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Image format setting must be a number, not " + parts[1] + ".");
+            }
+        }
+
+        if (codec.equals("png"))
+            return setting == null ? DEFAULT_PNG : png(setting);
+        else if (codec.equals("jpeg") || codec.equals("jpg"))
+            return jpeg(setting == null ? DEFAULT_JPEG_QUALITY : setting);
+        else if (codec.equals("webp"))
+            return setting == null ? webpLossless() : webp(setting);
+        else
+            throw new IllegalArgumentException("Unknown image format " + codec + ", use png, jpeg or webp.");
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns the file extension of this format's codec, including the dot.
+     *
+     * @return      file extension
+     */
+    public String extension() {
+        return extension;
+    }
+
+    /**
+     * Returns whether the native OpenCV library can encode this format.
+     *
+     * @return      true if images can be written in this format
+     */
+    public boolean isSupported() {
+        Mat pixel = new Mat(1, 1, CvType.CV_8UC3);
+        MatOfByte encoded = new MatOfByte();
+        MatOfInt encoderParameters = cvParameters();
+        try {
+            return Highgui.imencode(extension, pixel, encoded, encoderParameters);
+        }
+        catch (CvException e) {
+            return false;
+        }
+        finally {
+            pixel.release();
+            encoded.release();
+            encoderParameters.release();
+        }
+    }
+
+    /**
+     * Returns the encoder settings as OpenCV takes them, pairs of setting and value.
+     *
+     * @return      new matrix of the settings, must be released by the caller
+     */
+    MatOfInt cvParameters() {
+        return new MatOfInt(parameters);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ImageFormat))
+            return false;
+
+        ImageFormat format = (ImageFormat) other;
+        return extension.equals(format.extension) && Arrays.equals(parameters, format.parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * extension.hashCode() + Arrays.hashCode(parameters);
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    private static void checkRange(String setting, int value, int lowest, int highest) {
+        if (value < lowest || value > highest)
+            throw new IllegalArgumentException(setting + " must be from " + lowest + " to " + highest + ", not " + value + ".");
+    }
+}
@@ -0,0 +1,316 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.Mat;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Opt-in accounting of the native-backed objects of this package, {@link Image}s,
+ * {@link Histogram}s, {@link Shape}s and {@link ShapeCollection}s, to find the ones never
+ * released.
+ *
+ * Tracking is off unless the JVM is started with -Dphenocv.trackLeaks=true, or
+ * {@link LeakTracker#enable()} is called before the objects of interest are made. While it's
+ * off, making or releasing an object costs one check of a flag. While it's on, each object is
+ * recorded with the stack it was made from and the bytes of native memory it held when it was
+ * made or last resized, until it's released; at shutdown a {@link LeakTracker#report()} is
+ * printed to standard error, and it can be asked for at any time.
+ *
+ * Objects are held weakly, so tracking doesn't keep anything alive. An object that becomes
+ * unreachable without being released is counted as leaked: its memory was left to OpenCV's
+ * finalizers. Objects still reachable and not yet released are counted as live; at shutdown
+ * these are usually leaks too.
+ */
+public final class LeakTracker {
+
+    public static final String PROPERTY = "phenocv.trackLeaks";
+
+    // Frames of each allocation site kept for the report
+    private static final int SITE_FRAMES = 6;
+    private static final String PACKAGE = LeakTracker.class.getPackage().getName() + ".";
+
+    private static volatile boolean enabled = false;
+
+    // Guarded by this class's lock
+    private static final Map<Integer, List<Allocation>> live = new HashMap<Integer, List<Allocation>>();
+    private static final Map<String, Totals> leaked = new TreeMap<String, Totals>();
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    static {
+        if (Boolean.getBoolean(PROPERTY))
+            enable();
+    }
+
+    private LeakTracker() {}
+
+
+    /// ======================================================================
+    /// Switching
+    /// ======================================================================
+
+    /**
+     * Starts tracking every object made from now on, and prints a report at shutdown.
+     */
+    public static synchronized void enable() {
+        if (enabled)
+            return;
+
+        enabled = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                System.err.print(report());
+            }
+        }, "phenocv-leak-report"));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /// ======================================================================
+    /// Bookkeeping for native-backed objects
+    /// ======================================================================
+
+    /**
+     * Records the object as holding the supplied bytes of native memory, or updates the
+     * bytes if it's already tracked.
+     */
+    static void allocated(Object owner, long bytes) {
+        if (!enabled)
+            return;
+
+        synchronized (LeakTracker.class) {
+            expunge();
+
+            Allocation allocation = find(owner, false);
+            if (allocation != null) {
+                allocation.bytes = bytes;
+                return;
+            }
+
+            List<Allocation> bucket = live.get(System.identityHashCode(owner));
+            if (bucket == null) {
+                bucket = new ArrayList<Allocation>(1);
+                live.put(System.identityHashCode(owner), bucket);
+            }
+            bucket.add(new Allocation(owner, bytes, siteOf(new Throwable().getStackTrace())));
+        }
+    }
+
+    static void allocated(Object owner, Mat matrix) {
+        if (enabled)
+            allocated(owner, bytesOf(matrix));
+    }
+
+    /**
+     * Forgets the object, it's been released. Releasing an untracked object does nothing.
+     */
+    static void released(Object owner) {
+        if (!enabled)
+            return;
+
+        synchronized (LeakTracker.class) {
+            expunge();
+            find(owner, true);
+        }
+    }
+
+    static long bytesOf(Mat matrix) {
+        return matrix == null ? 0 : matrix.total() * matrix.elemSize();
+    }
+
+
+    /// ======================================================================
+    /// Reporting
+    /// ======================================================================
+
+    /**
+     * Returns how many objects of the supplied type are tracked and not yet released.
+     *
+     * @param type      type of object, such as GrayImage.class
+     * @return          number of live objects
+     */
+    public static synchronized int liveCount(Class<?> type) {
+        expunge();
+        return totals(type.getName()).count;
+    }
+
+    /**
+     * Returns the bytes of native memory held by the tracked objects of the supplied type not
+     * yet released.
+     *
+     * @param type      type of object, such as GrayImage.class
+     * @return          bytes held by live objects
+     */
+    public static synchronized long liveBytes(Class<?> type) {
+        expunge();
+        return totals(type.getName()).bytes;
+    }
+
+    /**
+     * Returns the bytes of native memory the supplied object is tracked as holding, or -1 if
+     * it isn't tracked, because it's been released or was made while tracking was off.
+     *
+     * @param owner     image, histogram, shape or shape collection
+     * @return          bytes held by the object, or -1
+     */
+    public static synchronized long trackedBytes(Object owner) {
+        expunge();
+        Allocation allocation = find(owner, false);
+        return allocation == null ? -1 : allocation.bytes;
+    }
+
+    /**
+     * Describes the objects not yet released, by type and then by where they were made, and
+     * the objects collected without ever being released.
+     *
+     * @return      multi-line report, ending with a line break
+     */
+    public static synchronized String report() {
+        expunge();
+
+        Map<String, Totals> byType = new TreeMap<String, Totals>();
+        Map<String, Totals> bySite = new HashMap<String, Totals>();
+        for (List<Allocation> bucket : live.values())
+            for (Allocation allocation : bucket) {
+                add(byType, allocation.type, allocation.bytes);
+                add(bySite, allocation.type + " made at\n" + allocation.site, allocation.bytes);
+            }
+
+        StringBuilder report = new StringBuilder();
+        report.append("Native objects not released, by type:\n");
+        appendTotals(report, byType);
+        report.append("Native objects collected without being released, by type:\n");
+        appendTotals(report, leaked);
+
+        List<Map.Entry<String, Totals>> sites = new ArrayList<Map.Entry<String, Totals>>(bySite.entrySet());
+        Collections.sort(sites, new Comparator<Map.Entry<String, Totals>>() {
+            @Override
+            public int compare(Map.Entry<String, Totals> first, Map.Entry<String, Totals> second) {
+                return Long.compare(second.getValue().bytes, first.getValue().bytes);
+            }
+        });
+        if (!sites.isEmpty())
+            report.append("Native objects not released, by where they were made, most bytes first:\n");
+        for (Map.Entry<String, Totals> site : sites)
+            report.append(String.format("%8d objects %14d bytes  %s%n",
+                    site.getValue().count, site.getValue().bytes, site.getKey()));
+
+        return report.toString();
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+
+    // Under this class's lock
+    private static Allocation find(Object owner, boolean remove) {
+        int hash = System.identityHashCode(owner);
+        List<Allocation> bucket = live.get(hash);
+        if (bucket == null)
+            return null;
+
+        for (int i = 0; i < bucket.size(); i++) {
+            Allocation allocation = bucket.get(i);
+            if (allocation.get() == owner) {
+                if (remove) {
+                    allocation.clear(); // so it's never counted as collected
+                    bucket.remove(i);
+                    if (bucket.isEmpty())
+                        live.remove(hash);
+                }
+                return allocation;
+            }
+        }
+        return null;
+    }
+
+    // Moves the objects collected unreleased to the leaked totals, under this class's lock
+    private static void expunge() {
+        Allocation allocation;
+        while ((allocation = (Allocation) collected.poll()) != null) {
+            List<Allocation> bucket = live.get(allocation.hash);
+            if (bucket != null && bucket.remove(allocation)) {
+                if (bucket.isEmpty())
+                    live.remove(allocation.hash);
+                add(leaked, allocation.type, allocation.bytes);
+            }
+        }
+    }
+
+    private static Totals totals(String type) {
+        Totals totals = new Totals();
+        for (List<Allocation> bucket : live.values())
+            for (Allocation allocation : bucket)
+                if (allocation.type.equals(type)) {
+                    totals.count++;
+                    totals.bytes += allocation.bytes;
+                }
+        return totals;
+    }
+
+    private static void add(Map<String, Totals> totals, String key, long bytes) {
+        Totals total = totals.get(key);
+        if (total == null) {
+            total = new Totals();
+            totals.put(key, total);
+        }
+        total.count++;
+        total.bytes += bytes;
+    }
+
+    private static void appendTotals(StringBuilder report, Map<String, Totals> totals) {
+        if (totals.isEmpty())
+            report.append("    none\n");
+        for (Map.Entry<String, Totals> total : totals.entrySet())
+            report.append(String.format("%8d objects %14d bytes  %s%n",
+                    total.getValue().count, total.getValue().bytes, total.getKey()));
+    }
+
+    // The frames from the first one outside this package, where the object was asked for
+    private static String siteOf(StackTraceElement stack[]) {
+        int first = 0;
+        while (first < stack.length - 1 && stack[first].getClassName().startsWith(PACKAGE))
+            first++;
+
+        StringBuilder site = new StringBuilder();
+        for (int i = first; i < Math.min(stack.length, first + SITE_FRAMES); i++)
+            site.append("        at ").append(stack[i]).append('\n');
+        return site.toString();
+    }
+
+
+    /// ======================================================================
+    /// Helper Classes
+    /// ======================================================================
+    private static final class Allocation extends WeakReference<Object> {
+        final int hash;
+        final String type;
+        final String site;
+        long bytes;
+
+        Allocation(Object owner, long bytes, String site) {
+            super(owner, collected);
+            this.hash = System.identityHashCode(owner);
+            this.type = owner.getClass().getName();
+            this.site = site;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Totals {
+        int count;
+        long bytes;
+    }
+}
@@ -19,7 +19,9 @@ final class ListMatOfPoint2fFactory extends ReversableObjectFactory<List<MatOfPo
 
     @Override
     public void release() {
-        ReleaseContainer.releaseMatrices(calculatedObject);
+        if (calculatedObject != null)
+            ReleaseContainer.releaseMatrices(calculatedObject);
+        calculatedObject = null;
     }
 
     @Override
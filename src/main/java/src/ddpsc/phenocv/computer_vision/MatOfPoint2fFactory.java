@@ -1,5 +1,6 @@
 package src.ddpsc.phenocv.computer_vision;
 
+import org.opencv.core.CvType;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import src.ddpsc.phenocv.utility.ReversableObjectFactory;
@@ -15,12 +16,16 @@ final class MatOfPoint2fFactory extends ReversableObjectFactory<MatOfPoint2f, Ma
 
     @Override
     public void release() {
-        calculatedObject.release();
+        if (calculatedObject != null)
+            calculatedObject.release();
+        calculatedObject = null;
     }
 
     @Override
     protected MatOfPoint2f calculate(MatOfPoint seed) {
-        MatOfPoint2f contour = new MatOfPoint2f(seed);
+        // Wrapping the integer points would fail, they have to be converted
+        MatOfPoint2f contour = new MatOfPoint2f();
+        seed.convertTo(contour, CvType.CV_32F);
         return contour;
     }
 }
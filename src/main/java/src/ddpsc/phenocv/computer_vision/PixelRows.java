@@ -0,0 +1,85 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.Mat;
+
+/**
+ * Read-only cursor over the pixels of an {@link Image}, a row at a time.
+ *
+ * Each row is read into the same buffer, the width of the image times its channels, so
+ * scanning an image allocates one row rather than a copy of the whole image as
+ * {@link Image#pixels()} does. Pixels are laid out as in {@link Image#pixels()}, so for a
+ * {@link ColorImage}:
+ *      {pixel1Blue, pixel1Green, pixel1Red, pixel2Blue, pixel2Green, ... etc}
+ *
+ *      PixelRows rows = image.pixelRows();
+ *      while (rows.next())
+ *          scan(rows.index(), rows.row());
+ *
+ * The buffer returned by {@link PixelRows#row()} is only valid until the next call to
+ * {@link PixelRows#next()}, which overwrites it; copy what has to be kept. The cursor is only
+ * valid while its image's pixels stay where they are: once the image is released or its
+ * pixels are set, {@link PixelRows#next()} throws an {@link IllegalStateException}.
+ */
+public final class PixelRows {
+
+    private final Image image;
+    private final Mat matrix;
+    private final long dataAddress;
+    private final byte row[];
+    private int index = -1;
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    PixelRows(Image image) {
+        this.image = image;
+        this.matrix = image.image;
+        this.dataAddress = matrix.dataAddr();
+        this.row = new byte[matrix.cols() * matrix.channels()];
+    }
+
+
+    /// ======================================================================
+    /// Cursor
+    /// ======================================================================
+
+    /**
+     * Moves to the next row, reading it into the row buffer.
+     *
+     * @return      true if there was a next row, false once every row has been read
+     */
+    public boolean next() {
+        if (image.image != matrix || matrix.dataAddr() != dataAddress)
+            throw new IllegalStateException("The image's pixels were released or replaced while reading its rows.");
+
+        if (index + 1 >= matrix.rows())
+            return false;
+
+        index++;
+        matrix.get(index, 0, row);
+        return true;
+    }
+
+    /**
+     * Returns the pixels of the current row, owned by this cursor and overwritten by the
+     * next call to {@link PixelRows#next()}.
+     *
+     * @return      pixels of the row, width times channels long
+     */
+    public byte[] row() {
+        if (index < 0)
+            throw new IllegalStateException("No row has been read yet, call next() first.");
+
+        return row;
+    }
+
+    /**
+     * Returns the index of the current row, from 0 at the top, or -1 before the first.
+     *
+     * @return      index of the row
+     */
+    public int index() {
+        return index;
+    }
+}
@@ -0,0 +1,107 @@
+package src.ddpsc.phenocv.computer_vision;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reusable matrices for the full-size temporaries of isolating an image, such as masks, kept
+ * per thread and by size and type.
+ *
+ * Every image of a batch is usually the same size, so once each worker thread has isolated an
+ * image, the matrices it borrows for the next are the ones it gave back from the last, and
+ * isolating allocates no new native memory for them. Each thread keeps at most
+ * {@link ScratchPool#MAX_FREE_PER_KIND} free matrices of each size and type, releasing any more
+ * given back, so a thread that only gives back, like one writing masks borrowed by another,
+ * doesn't hoard them.
+ *
+ * Matrices are handed out as they were given back, their pixels aren't cleared. A matrix must
+ * only be given back once, and not used after.
+ */
+final class ScratchPool {
+
+    static final int MAX_FREE_PER_KIND = 2;
+
+    private static final ThreadLocal<Map<Kind, ArrayDeque<Mat>>> freeMatrices =
+            new ThreadLocal<Map<Kind, ArrayDeque<Mat>>>() {
+                @Override
+                protected Map<Kind, ArrayDeque<Mat>> initialValue() {
+                    return new HashMap<Kind, ArrayDeque<Mat>>();
+                }
+            };
+
+    private ScratchPool() {}
+
+    /**
+     * Returns a matrix of the supplied size and type, one this thread gave back if it has one.
+     *
+     * @param rows      rows of the matrix
+     * @param columns   columns of the matrix
+     * @param type      OpenCV type of the matrix, such as CvType.CV_8UC1
+     * @return          matrix whose pixels are undefined, to be given back or released
+     */
+    static Mat borrow(int rows, int columns, int type) {
+        ArrayDeque<Mat> free = freeMatrices.get().get(new Kind(rows, columns, type));
+        if (free != null && !free.isEmpty())
+            return free.pop();
+
+        return new Mat(rows, columns, type);
+    }
+
+    /**
+     * Keeps the supplied matrix for this thread's next borrow of its size and type.
+     *
+     * @param matrix    matrix no longer used by the caller
+     */
+    static void giveBack(Mat matrix) {
+        if (matrix.empty() || !matrix.isContinuous()) {
+            matrix.release();
+            return;
+        }
+
+        Kind kind = new Kind(matrix.rows(), matrix.cols(), matrix.type());
+        Map<Kind, ArrayDeque<Mat>> free = freeMatrices.get();
+        ArrayDeque<Mat> freeOfKind = free.get(kind);
+        if (freeOfKind == null) {
+            freeOfKind = new ArrayDeque<Mat>(MAX_FREE_PER_KIND);
+            free.put(kind, freeOfKind);
+        }
+
+        if (freeOfKind.size() < MAX_FREE_PER_KIND)
+            freeOfKind.push(matrix);
+        else
+            matrix.release();
+    }
+
+
+    /// ======================================================================
+    /// Helper Classes
+    /// ======================================================================
+    private static final class Kind {
+        final int rows;
+        final int columns;
+        final int type;
+
+        Kind(int rows, int columns, int type) {
+            this.rows = rows;
+            this.columns = columns;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Kind))
+                return false;
+
+            Kind kind = (Kind) other;
+            return rows == kind.rows && columns == kind.columns && type == kind.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * rows + columns) + type;
+        }
+    }
+}
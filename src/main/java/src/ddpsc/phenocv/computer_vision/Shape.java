@@ -4,6 +4,7 @@ import org.opencv.core.*;
 import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 import src.ddpsc.phenocv.utility.ReleaseContainer;
+import src.ddpsc.phenocv.utility.ReleaseScope;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -58,17 +59,27 @@ public class Shape implements Writable, Releasable {
 
         this.innerContours = innerContours;
         innerContoursFloat = new ListMatOfPoint2fFactory();
+
+        if (LeakTracker.isEnabled())
+            LeakTracker.allocated(this, contourBytes(contours()));
     }
 
     /// ======================================================================
     /// Properties
     /// ======================================================================
+    /**
+     * Returns the area enclosed by the shape's outline less the area of its holes, measured
+     * through the centers of the boundary pixels.
+     *
+     * This is smaller than {@link Shape#numberPixels()} by about half the boundary pixels.
+     *
+     * @return      area of the shape
+     */
     public double area() {
-        double outerArea = Imgproc.contourArea(outerContour);
-        double area = outerArea;
+        double area = Imgproc.contourArea(outerContour);
 
         for (MatOfPoint innerContour : innerContours)
-            outerArea -= Imgproc.contourArea(innerContour);
+            area -= Imgproc.contourArea(innerContour);
 
         return area;
     }
@@ -77,6 +88,28 @@ public class Shape implements Writable, Releasable {
         return Imgproc.arcLength(outerContourFloat(), true);
     }
 
+    /**
+     * Returns the area of the smallest convex polygon containing the shape.
+     *
+     * @return      area of the shape's convex hull
+     */
+    public double convexHullArea() {
+        return convexHullArea(outerContour);
+    }
+
+    /**
+     * Returns the ratio of the shape's area to the area of its convex hull, from near 0 for
+     * sprawling or hollow shapes to 1 for convex ones.
+     *
+     * A shape without area, such as a line, has a solidity of 0.
+     *
+     * @return      solidity of the shape
+     */
+    public double solidity() {
+        double hullArea = convexHullArea();
+        return hullArea > 0 ? area() / hullArea : 0;
+    }
+
     public int numberPixels() {
         return Core.countNonZero(toBinaryMatrix());
     }
@@ -111,6 +144,47 @@ public class Shape implements Writable, Releasable {
         return new ColorPixel(Core.mean(subImage, subImageMask.image));
     }
 
+    /**
+     * Measures the color of the shape's pixels in the supplied image, holes excluded.
+     *
+     * The image's HSV form is converted to the first time it's needed and kept by the image,
+     * so measuring every shape of an image converts it once.
+     *
+     * @param image     image the shape was found in
+     * @return          color of the shape's pixels
+     */
+    public ColorStatistics colorStatisticsOf(ColorImage image) {
+        return colorStatisticsOf(image, new Point(0, 0));
+    }
+
+    /**
+     * Measures the color of the shape's pixels in the supplied part of the image the shape
+     * was found in, holes excluded. The shape must lie within the part.
+     *
+     * Measuring in a crop of the image bounding every shape converts only that crop to HSV.
+     *
+     * @param imagePart     part of the image the shape was found in
+     * @param origin        where the part's top left corner is in the image
+     * @return              color of the shape's pixels
+     */
+    public ColorStatistics colorStatisticsOf(ColorImage imagePart, Point origin) {
+        Rect boundingBox = boundingBox();
+        Rect partBox = new Rect(
+                boundingBox.x - (int) origin.x, boundingBox.y - (int) origin.y,
+                boundingBox.width, boundingBox.height);
+
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Mat bgr = scope.add(imagePart.image.submat(partBox));
+            Mat hsv = scope.add(imagePart.borrowConversion(ColorSpace.HSV).submat(partBox));
+            Mat mask = toBinaryMatrix(); // references factory-built field, do not release
+
+            return ColorStatistics.of(bgr, hsv, mask);
+        }
+        finally {
+            imagePart.returnConversion(ColorSpace.HSV);
+        }
+    }
+
     private Mat subImage(Mat image) {
         Mat subImage = image.submat(boundingBox());
         return subImage;
@@ -123,6 +197,64 @@ public class Shape implements Writable, Releasable {
         return contours;
     }
 
+    static long contourBytes(List<MatOfPoint> contours) {
+        long bytes = 0;
+        for (MatOfPoint contour : contours)
+            bytes += LeakTracker.bytesOf(contour);
+        return bytes;
+    }
+
+    static double convexHullArea(MatOfPoint points) {
+        if (points.total() < 3)
+            return 0;
+
+        try (ReleaseScope scope = new ReleaseScope()) {
+            MatOfInt hullIndices = scope.add(new MatOfInt());
+            Imgproc.convexHull(points, hullIndices);
+
+            int indices[] = hullIndices.toArray();
+            Point allPoints[] = points.toArray();
+            Point hullPoints[] = new Point[indices.length];
+            for (int i = 0; i < indices.length; i++)
+                hullPoints[i] = allPoints[indices[i]];
+
+            return Imgproc.contourArea(scope.add(new MatOfPoint(hullPoints)));
+        }
+    }
+
+    /**
+     * Appends the shape as a GeoJSON Polygon, its outline then its holes.
+     *
+     * @see ShapeCollection#toGeoJSON()
+     */
+    void appendGeoJSON(StringBuilder json) {
+        json.append("{\"type\":\"Polygon\",\"coordinates\":[");
+
+        appendGeoJSONRing(json, outerContour);
+        for (MatOfPoint innerContour : innerContours) {
+            json.append(',');
+            appendGeoJSONRing(json, innerContour);
+        }
+
+        json.append("]}");
+    }
+
+    private static void appendGeoJSONRing(StringBuilder json, MatOfPoint contour) {
+        int numberPoints = (int) contour.total();
+        int coordinates[] = new int[2 * numberPoints];
+        contour.get(0, 0, coordinates);
+
+        // GeoJSON rings end where they started
+        json.append('[');
+        for (int i = 0; i <= 2 * numberPoints; i += 2) {
+            int point = i % (2 * numberPoints);
+            if (i > 0)
+                json.append(',');
+            json.append('[').append(coordinates[point]).append(',').append(coordinates[point + 1]).append(']');
+        }
+        json.append(']');
+    }
+
     Mat hierarchy() {
         Mat hierarchy = new Mat(new Size(1, innerContours.size() + 1), CvType.CV_32SC4);
         // 4 entries per relation, entry values:
@@ -169,15 +301,23 @@ public class Shape implements Writable, Releasable {
         Highgui.imwrite(filename, toBinaryMatrix());
     }
 
+    @Override
+    public void writeTo(String filename, ImageFormat format) {
+        MatOfInt parameters = format.cvParameters();
+        Highgui.imwrite(filename, toBinaryMatrix(), parameters);
+        parameters.release();
+    }
+
 
     /// ======================================================================
     /// Releasable
     /// ======================================================================
     @Override
     public void release() {
+        LeakTracker.released(this);
         shapeImage.release();
         outerContour.release();
-        outerContour.release();
+        outerContourFloat.release();
         ReleaseContainer.releaseMatrices(innerContours);
         innerContoursFloat.release();
     }
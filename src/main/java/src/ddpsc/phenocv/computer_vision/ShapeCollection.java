@@ -4,6 +4,9 @@ import org.opencv.core.*;
 import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 import src.ddpsc.phenocv.utility.ReleaseContainer;
+import src.ddpsc.phenocv.utility.ReleaseScope;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -38,6 +41,8 @@ public class ShapeCollection implements Writable, Releasable {
 
         hierarchy = null;
         contours = null;
+
+        LeakTracker.allocated(this, 0); // its shapes are tracked on their own
     }
 
     ShapeCollection(List<MatOfPoint> contours, Mat hierarchy) {
@@ -45,13 +50,52 @@ public class ShapeCollection implements Writable, Releasable {
         this.hierarchy = hierarchy;
         shapesImage = new ShapeCollectionImageFactory();
         shapesList = new ShapeListFactory();
+
+        if (LeakTracker.isEnabled())
+            LeakTracker.allocated(this, LeakTracker.bytesOf(hierarchy) + Shape.contourBytes(contours));
     }
 
     public static ShapeCollection FromImage(GrayImage image) {
 
+        long start = StageTimer.start();
         List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
         Mat hierarchy = new Mat();
         Imgproc.findContours(image.image, contours, hierarchy, Imgproc.RETR_CCOMP, Imgproc.CHAIN_APPROX_SIMPLE);
+        StageTimer.record(Stage.CONTOUR_EXTRACTION, start);
+        return new ShapeCollection(contours, hierarchy);
+    }
+
+    /**
+     * Finds the shapes of a region of a mask, in the coordinates of the whole mask, without
+     * modifying the mask.
+     *
+     * Only the region is copied and searched, which is much less work than the whole mask
+     * when the shapes are known to lie within a small part of it. Unlike
+     * {@link #FromImage(GrayImage)}, shapes touching the edge of the mask keep their pixels
+     * along that edge.
+     *
+     * @param mask      mask to find the shapes of
+     * @param region    region of the mask containing the shapes
+     * @return          the shapes within the region
+     */
+    public static ShapeCollection FromRegion(GrayImage mask, Rect region) {
+
+        long start = StageTimer.start();
+        // findContours ignores the pixels along the edge of the image it's given, so the
+        // region is copied inside a pixel-wide black border
+        Mat padded = Mat.zeros(region.height + 2, region.width + 2, CvType.CV_8UC1);
+        Mat paddedRegion = padded.submat(new Rect(1, 1, region.width, region.height));
+        Mat maskRegion = mask.image.submat(region);
+        maskRegion.copyTo(paddedRegion);
+        paddedRegion.release();
+        maskRegion.release();
+
+        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        Mat hierarchy = new Mat();
+        Point offset = new Point(region.x - 1, region.y - 1);
+        Imgproc.findContours(padded, contours, hierarchy, Imgproc.RETR_CCOMP, Imgproc.CHAIN_APPROX_SIMPLE, offset);
+        padded.release();
+        StageTimer.record(Stage.CONTOUR_EXTRACTION, start);
         return new ShapeCollection(contours, hierarchy);
     }
 
@@ -88,6 +132,51 @@ public class ShapeCollection implements Writable, Releasable {
         return new Rect(bottomRight, topLeft);
     }
 
+    /**
+     * Returns the area of the smallest convex polygon containing every shape.
+     *
+     * @return      area of the shapes' convex hull
+     */
+    public double convexHullArea() {
+        List<Point> outlinePoints = new ArrayList<Point>();
+        for (Shape shape : shapes()) // references factory-field, do not release
+            outlinePoints.addAll(shape.outerContour.toList());
+
+        MatOfPoint allPoints = new MatOfPoint();
+        allPoints.fromList(outlinePoints);
+        double area = Shape.convexHullArea(allPoints);
+        allPoints.release();
+
+        return area;
+    }
+
+    /**
+     * Returns the shapes as a GeoJSON FeatureCollection of Polygon features, in the pixel
+     * coordinates of the image they were found in, x right and y down.
+     *
+     * Each polygon's first ring is the shape's outline and any further rings are its holes.
+     * Ring points are the centers of the boundary pixels, straight runs of them reduced to
+     * their ends, so drawing the shapes back with {@link Imgproc#drawContours} gives back the
+     * mask they were found in. The feature's id is the shape's index in {@link #shapes()}.
+     *
+     * @return      GeoJSON of the shapes
+     */
+    public String toGeoJSON() {
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+
+        List<Shape> shapes = shapes(); // references factory-field, do not release
+        for (int i = 0; i < shapes.size(); i++) {
+            if (i > 0)
+                json.append(',');
+
+            json.append("{\"type\":\"Feature\",\"id\":").append(i).append(",\"properties\":{},\"geometry\":");
+            shapes.get(i).appendGeoJSON(json);
+            json.append('}');
+        }
+
+        return json.append("]}").toString();
+    }
+
     public GrayImage zeroedGrayImage() {
         return new GrayImage(toGrayMatrix());
     }
@@ -121,20 +210,23 @@ public class ShapeCollection implements Writable, Releasable {
         // Otherwise you'll get weird noise in the image for no apparent reason
 
         List<Shape> shapes = shapes(); // references field, do not release
-        for (int i = 0; i < shapes.size(); i++) {
-            Shape shape = shapes.get(i);
-
-            ColorPixel color = shape.averagePixelOf(image);
-
-            Imgproc.drawContours(shapesImage,
-                    shape.contours(),
-                    ShapeImageFactory.DRAW_ALL,
-                    color.scalar(),
-                    ShapeImageFactory.FILL_AREA,
-                    ShapeImageFactory.SOLID_PERIMETER,
-                    new Mat(),
-                    ShapeImageFactory.DRAW_ALL_CHILDREN,
-                    new Point());
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Mat noHierarchy = scope.add(new Mat());
+            for (int i = 0; i < shapes.size(); i++) {
+                Shape shape = shapes.get(i);
+
+                ColorPixel color = shape.averagePixelOf(image);
+
+                Imgproc.drawContours(shapesImage,
+                        shape.contours(),
+                        ShapeImageFactory.DRAW_ALL,
+                        color.scalar(),
+                        ShapeImageFactory.FILL_AREA,
+                        ShapeImageFactory.SOLID_PERIMETER,
+                        noHierarchy,
+                        ShapeImageFactory.DRAW_ALL_CHILDREN,
+                        new Point());
+            }
         }
 
         return new ColorImage(shapesImage);
@@ -146,6 +238,7 @@ public class ShapeCollection implements Writable, Releasable {
     /// ======================================================================
     @Override
     public void release() {
+        LeakTracker.released(this);
         shapesImage.release();
         shapesList.release();
         if (hierarchy != null)
@@ -163,6 +256,13 @@ public class ShapeCollection implements Writable, Releasable {
         Highgui.imwrite(filename, toGrayMatrix());
     }
 
+    @Override
+    public void writeTo(String filename, ImageFormat format) {
+        MatOfInt parameters = format.cvParameters();
+        Highgui.imwrite(filename, toGrayMatrix(), parameters);
+        parameters.release();
+    }
+
 
     /// ======================================================================
     /// Helper Methods
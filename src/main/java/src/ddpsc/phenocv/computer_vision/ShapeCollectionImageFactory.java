@@ -3,6 +3,7 @@ package src.ddpsc.phenocv.computer_vision;
 import org.opencv.core.*;
 import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
+import src.ddpsc.phenocv.utility.ReleaseScope;
 import src.ddpsc.phenocv.utility.ReversableObjectFactory;
 
 import java.util.List;
@@ -18,7 +19,8 @@ class ShapeCollectionImageFactory extends ReversableObjectFactory<Mat, ShapeColl
 
     @Override
     public void release() {
-        calculatedObject.release();
+        if (calculatedObject != null)
+            calculatedObject.release();
         calculatedObject = null;
     }
 
@@ -35,18 +37,21 @@ class ShapeCollectionImageFactory extends ReversableObjectFactory<Mat, ShapeColl
         // I know you think this line is unnecessary and wasteful but you're wrong, trust me. Don't delete it
         // Otherwise you'll get weird noise in the image for no apparent reason
 
-        for (int i = 0; i < shapes.size(); i++) {
-            Shape shape = shapes.get(i);
-
-            Imgproc.drawContours(shapesImage,
-                    shape.contours(),
-                    ShapeImageFactory.DRAW_ALL,
-                    ShapeImageFactory.WHITE,
-                    ShapeImageFactory.FILL_AREA,
-                    ShapeImageFactory.SOLID_PERIMETER,
-                    new Mat(),
-                    ShapeImageFactory.DRAW_ALL_CHILDREN,
-                    offset);
+        try (ReleaseScope scope = new ReleaseScope()) {
+            Mat noHierarchy = scope.add(new Mat());
+            for (int i = 0; i < shapes.size(); i++) {
+                Shape shape = shapes.get(i);
+
+                Imgproc.drawContours(shapesImage,
+                        shape.contours(),
+                        ShapeImageFactory.DRAW_ALL,
+                        ShapeImageFactory.WHITE,
+                        ShapeImageFactory.FILL_AREA,
+                        ShapeImageFactory.SOLID_PERIMETER,
+                        noHierarchy,
+                        ShapeImageFactory.DRAW_ALL_CHILDREN,
+                        offset);
+            }
         }
 
         return shapesImage;
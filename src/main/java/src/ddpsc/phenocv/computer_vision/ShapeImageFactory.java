@@ -30,7 +30,8 @@ class ShapeImageFactory extends ReversableObjectFactory<Mat, Shape> implements R
 
     @Override
     public void release() {
-       calculatedObject.release();
+       if (calculatedObject != null)
+           calculatedObject.release();
        calculatedObject = null;
     }
 
@@ -56,7 +57,7 @@ class ShapeImageFactory extends ReversableObjectFactory<Mat, Shape> implements R
                 WHITE,
                 FILL_AREA,
                 SOLID_PERIMETER,
-                new Mat(),
+                shapeHierarchy,
                 DRAW_ALL_CHILDREN,
                 offset);
 
@@ -19,7 +19,9 @@ class ShapeListFactory extends ReversableObjectFactory<List<Shape>, ShapeCollect
 
     @Override
     public void release() {
-        ReleaseContainer.releaseAll(calculatedObject);
+        if (calculatedObject != null)
+            ReleaseContainer.releaseAll(calculatedObject);
+        calculatedObject = null;
     }
 
     @Override
@@ -28,6 +30,11 @@ class ShapeListFactory extends ReversableObjectFactory<List<Shape>, ShapeCollect
         List<MatOfPoint> contours = shapeCollection.contours;
 
         Mat hierarchy = shapeCollection.hierarchy;
+        if (contours.isEmpty()) { // an empty hierarchy has no data to read
+            hierarchy.release();
+            return shapes;
+        }
+
         int linearRelations[] = new int[contours.size() * 4];
         hierarchy.get(0, 0, linearRelations);
         hierarchy.release();
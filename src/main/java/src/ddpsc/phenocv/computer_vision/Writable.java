@@ -6,8 +6,14 @@ package src.ddpsc.phenocv.computer_vision;
  * Writes an object to the file system to the provided
  * filename. Filename should not be a directory.
  *
+ * The codec is picked by the filename's extension. Writing with an {@link ImageFormat}
+ * passes its encoder settings along as well, so the filename should end in the format's
+ * extension.
+ *
  * @author cjmcentee
  */
 public interface Writable {
     void writeTo(String filename);
+
+    void writeTo(String filename, ImageFormat format);
 }
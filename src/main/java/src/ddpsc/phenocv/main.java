@@ -1,13 +1,23 @@
 package src.ddpsc.phenocv;
 
-import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.algorithms.ColorIsolation;
+import src.ddpsc.phenocv.computer_vision.ImageFormat;
 import src.ddpsc.phenocv.program_execution.CommandLineArgs;
 import src.ddpsc.phenocv.program_execution.ImageProcessor;
 import src.ddpsc.phenocv.program_execution.ImagesIO;
+import src.ddpsc.phenocv.program_execution.MeasurementSink;
+import src.ddpsc.phenocv.program_execution.OutputMode;
+import src.ddpsc.phenocv.program_execution.ProcessedImage;
+import src.ddpsc.phenocv.program_execution.RunManifest;
+import src.ddpsc.phenocv.program_execution.StreamingImageProcessor;
+import src.ddpsc.phenocv.program_execution.WatchingImageProcessor;
+import src.ddpsc.phenocv.program_execution.WorkQueue;
 import src.ddpsc.phenocv.utility.OpenCV;
-import src.ddpsc.phenocv.utility.Tuple;
+import src.ddpsc.phenocv.utility.StageTimer;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: bryantd
@@ -17,6 +27,9 @@ import java.util.List;
  */
 public class main {
 
+  // How long the watch mode's shutdown hook waits for main to finish up after stopping it
+  private static final long CLEANUP_TIMEOUT_SECONDS = 60;
+
   public static void main(String[] args) throws InterruptedException {
 
     // Exits the program if the library fails to load
@@ -28,19 +41,112 @@ public class main {
         "extensions include [jpg, jpeg, tiff, png]\nCopyright 2014", 4, 5, true, System.out);
     } else {
       String outputDirectory = commandLineArgs.outputDirectory;
+      // Counted down once main is done cleaning up, however it ends, for the watch mode's shutdown hook
+      final CountDownLatch cleanedUp = new CountDownLatch(1);
 
       try {
-        ImagesIO imagesIO = new ImagesIO(commandLineArgs.trainingDirectory,
+        boolean useSavedModel = commandLineArgs.modelFile != null;
+        ImagesIO imagesIO = new ImagesIO(useSavedModel ? null : commandLineArgs.trainingDirectory,
           commandLineArgs.processDirectory,
-          commandLineArgs.outputDirectory);
-        ImageProcessor imageProcessor = new ImageProcessor(imagesIO, commandLineArgs.numThreads);
-        List<Tuple<String, ColorImage>> resultsImagesTuples = imageProcessor.getProcessedImages();
-        imagesIO.writeProcessedImages(resultsImagesTuples);
-        System.out.println("Wrote " + resultsImagesTuples.size() + " images to " + outputDirectory);
+          commandLineArgs.outputDirectory,
+          false,
+          !commandLineArgs.watch);
+        ImageFormat outputFormat = ImageFormat.parse(commandLineArgs.outputFormat);
+        if(!outputFormat.isSupported()) {
+          throw new Exception("This build of OpenCV can't write " + outputFormat + " images.");
+        }
+        imagesIO.useOutputFormat(outputFormat);
+        imagesIO.useOutputMode(OutputMode.parse(commandLineArgs.outputMode));
+        MeasurementSink measurementSink = null;
+        if(commandLineArgs.measurementsFile != null) {
+          measurementSink = MeasurementSink.open(commandLineArgs.measurementsFile);
+          imagesIO.useMeasurementSink(measurementSink);
+        }
+        if(commandLineArgs.shardCount > 1) {
+          imagesIO.selectShard(commandLineArgs.shardIndex, commandLineArgs.shardCount);
+          System.out.println("Processing shard " + commandLineArgs.shardIndex + " of " + commandLineArgs.shardCount + ".");
+        }
+        ColorIsolation colorIsolation = colorIsolationFor(commandLineArgs, imagesIO);
+        RunManifest manifest = null;
+        if(commandLineArgs.queueDirectory != null) {
+          // The queue's completion markers record what's done, shared by every process
+          imagesIO.useWorkQueue(new WorkQueue(commandLineArgs.queueDirectory,
+            TimeUnit.SECONDS.toMillis(commandLineArgs.leaseSeconds)));
+        } else {
+          manifest = RunManifest.open(outputDirectory, commandLineArgs.shardIndex, commandLineArgs.shardCount);
+          imagesIO.useManifest(manifest, colorIsolation.trainingHash());
+          if(!commandLineArgs.force) {
+            imagesIO.skipProcessed();
+          }
+        }
+        // Time processing only, training back-projects and converts images too
+        StageTimer.reset();
+        if(commandLineArgs.watch) {
+          final WatchingImageProcessor imageProcessor = new WatchingImageProcessor(imagesIO, colorIsolation,
+            commandLineArgs.numThreads);
+          // Interrupting finishes the images already handed over, and lets main close the manifest
+          // and print timings, before exiting. Main may itself be the thread exiting, so the hook
+          // waits for it to clean up rather than for it to end
+          Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+              try {
+                imageProcessor.stop();
+                cleanedUp.await(CLEANUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+              } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          });
+          int writtenImages = imageProcessor.watch();
+          System.out.println("Wrote " + writtenImages + " images to " + outputDirectory);
+        } else if(commandLineArgs.streaming || commandLineArgs.queueDirectory != null) {
+          StreamingImageProcessor imageProcessor = new StreamingImageProcessor(imagesIO, colorIsolation,
+            commandLineArgs.numThreads, commandLineArgs.prefetchDepth);
+          int writtenImages = imageProcessor.processImages();
+          System.out.println("Wrote " + writtenImages + " images to " + outputDirectory);
+        } else {
+          imagesIO.loadProcessImages();
+          ImageProcessor imageProcessor = new ImageProcessor(imagesIO, colorIsolation, commandLineArgs.numThreads);
+          List<ProcessedImage> processedImages = imageProcessor.getProcessedImages();
+          imagesIO.writeProcessedImages(processedImages);
+          System.out.println("Wrote " + processedImages.size() + " images to " + outputDirectory);
+        }
+        colorIsolation.release();
+        if(measurementSink != null) {
+          measurementSink.close();
+          System.out.println("Recorded measurements in " + commandLineArgs.measurementsFile);
+        }
+        if(manifest != null) {
+          manifest.close();
+          if(!commandLineArgs.force) {
+            System.out.println("Skipped " + imagesIO.skippedImages() + " images already processed with this model.");
+          }
+        }
+        if(commandLineArgs.timings) {
+          System.out.println(StageTimer.readout());
+        }
       } catch(Exception e) {
         System.out.println("Unable to proceed: " + e.getMessage());
+        cleanedUp.countDown(); // exiting runs the shutdown hook, which waits on this
         System.exit(0);
+      } finally {
+        cleanedUp.countDown();
       }
     }
   }
+
+  private static ColorIsolation colorIsolationFor(CommandLineArgs commandLineArgs, ImagesIO imagesIO) throws Exception {
+    if(commandLineArgs.modelFile != null) {
+      ColorIsolation colorIsolation = ColorIsolation.load(commandLineArgs.modelFile);
+      System.out.println("Loaded model " + commandLineArgs.modelFile + " trained on " + colorIsolation.trainingHash());
+      return colorIsolation;
+    }
+    ColorIsolation colorIsolation = ImageProcessor.trainedColorIsolation(imagesIO, commandLineArgs.numThreads);
+    if(commandLineArgs.saveModelFile != null) {
+      colorIsolation.save(commandLineArgs.saveModelFile);
+      System.out.println("Saved model to " + commandLineArgs.saveModelFile);
+    }
+    return colorIsolation;
+  }
 }
@@ -19,6 +19,20 @@ public class CommandLineArgs {
   public String processDirectory;
   public String outputDirectory;
   public int numThreads;
+  public boolean streaming;
+  public int prefetchDepth;
+  public String modelFile;
+  public String saveModelFile;
+  public String outputFormat;
+  public String outputMode;
+  public String measurementsFile;
+  public boolean timings;
+  public boolean force;
+  public boolean watch;
+  public int shardIndex;
+  public int shardCount;
+  public String queueDirectory;
+  public long leaseSeconds;
   public boolean verifiedOptions;
   private Options options;
 
@@ -47,7 +61,9 @@ public class CommandLineArgs {
       .withLongOpt("processDirectory")
       .hasArg()
       .withType(String.class)
-      .withDescription("Directory containing images to process.")
+      .withDescription("Directory containing images to process, searched recursively, a single image, " +
+        "or a work list file, any file without an image extension, naming one image per line, relative " +
+        "to the work list's directory or absolute.")
       .create("p");
     Option outputDirectory = OptionBuilder.withArgName("outputDirectory")
       .withLongOpt("outputDirectory")
@@ -62,10 +78,122 @@ public class CommandLineArgs {
       .withDescription("Number of threads to use when processing images. Defaults to the number " +
         "of cores in your system = " + cores + ".")
       .create("n");
+    Option streaming = OptionBuilder.withArgName("streaming")
+      .withLongOpt("streaming")
+      .withDescription("Decode, isolate, encode and write images as a stream instead of loading " +
+        "the whole process directory first. Keeps memory use flat on large directories.")
+      .create("s");
+    Option prefetch = OptionBuilder.withArgName("prefetchDepth")
+      .withLongOpt("prefetch")
+      .hasArg()
+      .withType(Number.class)
+      .withDescription("When streaming, how many files to read into memory ahead of the decoders, so " +
+        "reading from slow storage overlaps with isolation. Defaults to twice the number of threads.")
+      .create("r");
+    Option model = OptionBuilder.withArgName("modelFile")
+      .withLongOpt("model")
+      .hasArg()
+      .withType(String.class)
+      .withDescription("Saved model to isolate with instead of training. Replaces the training directory.")
+      .create("m");
+    Option saveModel = OptionBuilder.withArgName("modelFile")
+      .withLongOpt("saveModel")
+      .hasArg()
+      .withType(String.class)
+      .withDescription("File to save the model trained from the training directory to, for use with --model.")
+      .create("w");
+    Option outputFormat = OptionBuilder.withArgName("format")
+      .withLongOpt("format")
+      .hasArg()
+      .withType(String.class)
+      .withDescription("Format to write processed images in: png[:0-9] for PNG at a zlib compression level, " +
+        "jpeg[:0-100] for JPEG at a quality, webp for lossless WebP or webp:1-100 for lossy WebP at a " +
+        "quality. Defaults to png with OpenCV's default settings, the fastest PNG; any compression level " +
+        "gives smaller but slower PNGs.")
+      .create("e");
+    Option outputMode = OptionBuilder.withArgName("mode")
+      .withLongOpt("outputMode")
+      .hasArg()
+      .withType(String.class)
+      .withDescription("What to write for each image: image for the whole image with everything but the " +
+        "plant blacked out, mask for only the 1-channel mask of the plant, or crop for the image cropped " +
+        "to the box bounding the plant, with an .offset.tsv file beside it giving the box, or vector for " +
+        "the plant's outlines and holes as GeoJSON polygons instead of pixels. Defaults to image.")
+      .create("k");
+    Option measurements = OptionBuilder.withArgName("measurementsFile")
+      .withLongOpt("measurements")
+      .hasArg()
+      .withType(String.class)
+      .withDescription("File to record the size, form and color of each image's plants in as it is " +
+        "isolated: area, perimeter, convex hull area, solidity, bounding box, average color, excess green " +
+        "and hue fractions of each plant and of the image as a whole. A .csv file gets one row per plant, with one row per image in a file beside it ending in " +
+        "_images.csv; a .jsonl file gets one line per image; a .mv.db file is an embedded H2 database " +
+        "with tables of images and plants, batched into transactions. Rows are appended to an existing file.")
+      .create("M");
+    Option timings = OptionBuilder.withArgName("timings")
+      .withLongOpt("timings")
+      .withDescription("Print the p50/p90/p99/max latency and throughput of each processing stage " +
+        "(decode, color conversion, back-projection, ...) at the end of the run.")
+      .create("T");
+    Option force = OptionBuilder.withArgName("force")
+      .withLongOpt("force")
+      .withDescription("Process every image, even those the output directory's run manifest shows " +
+        "were already processed with the same model and haven't changed since.")
+      .create("f");
+    Option watch = OptionBuilder.withArgName("watch")
+      .withLongOpt("watch")
+      .withDescription("Keep running after the process directory is done, isolating new images as " +
+        "they are written to it until interrupted. The process directory may start out empty.")
+      .create("d");
+    Option shardIndex = OptionBuilder.withArgName("shardIndex")
+      .withLongOpt("shardIndex")
+      .hasArg()
+      .withType(Number.class)
+      .withDescription("Which shard of the process directory to process, from 0 to shardCount - 1. " +
+        "Defaults to 0.")
+      .create("i");
+    Option shardCount = OptionBuilder.withArgName("shardCount")
+      .withLongOpt("shardCount")
+      .hasArg()
+      .withType(Number.class)
+      .withDescription("Number of shards to split the process directory into by a hash of each image's " +
+        "name, so that many processes, each given a different shardIndex, share it without overlapping. " +
+        "Defaults to 1.")
+      .create("c");
+    Option queueDirectory = OptionBuilder.withArgName("queueDirectory")
+      .withLongOpt("queue")
+      .hasArg()
+      .withType(String.class)
+      .withDescription("Shared directory through which any number of phenocv processes claim the images " +
+        "of the process directory one at a time, so faster machines take on more of them. Use a new " +
+        "directory for each batch. Implies streaming.")
+      .create("q");
+    Option leaseSeconds = OptionBuilder.withArgName("leaseSeconds")
+      .withLongOpt("leaseSeconds")
+      .hasArg()
+      .withType(Number.class)
+      .withDescription("Seconds after which an image claimed through --queue but not finished, because " +
+        "its process died, may be claimed by another process. Leases aren't renewed, so this must cover " +
+        "the slowest image. Defaults to 600.")
+      .create("l");
     options.addOption(trainingDirectory);
     options.addOption(processDirectory);
     options.addOption(outputDirectory);
     options.addOption(numThreads);
+    options.addOption(streaming);
+    options.addOption(prefetch);
+    options.addOption(model);
+    options.addOption(saveModel);
+    options.addOption(outputFormat);
+    options.addOption(outputMode);
+    options.addOption(measurements);
+    options.addOption(timings);
+    options.addOption(force);
+    options.addOption(watch);
+    options.addOption(shardIndex);
+    options.addOption(shardCount);
+    options.addOption(queueDirectory);
+    options.addOption(leaseSeconds);
     return options;
   }
 
@@ -81,6 +209,11 @@ public class CommandLineArgs {
         hasT = true;
         trainingDirectory = commandLine.getOptionValue("t");
       }
+      if(commandLine.hasOption("m")) {
+        hasT = true;
+        modelFile = commandLine.getOptionValue("m");
+      }
+      saveModelFile = commandLine.getOptionValue("w");
       if(commandLine.hasOption("p")) {
         hasP = true;
         processDirectory = commandLine.getOptionValue("p");
@@ -91,7 +224,27 @@ public class CommandLineArgs {
       }
       String threads = commandLine.getOptionValue("n", new Integer(Runtime.getRuntime().availableProcessors()).toString());
       numThreads = Integer.parseInt(threads);
-      if(hasT && hasP && hasO) {
+      streaming = commandLine.hasOption("s");
+      prefetchDepth = Integer.parseInt(commandLine.getOptionValue("r", Integer.toString(2 * numThreads)));
+      outputFormat = commandLine.getOptionValue("e", "png");
+      outputMode = commandLine.getOptionValue("k", "image");
+      measurementsFile = commandLine.getOptionValue("M");
+      timings = commandLine.hasOption("T");
+      force = commandLine.hasOption("f");
+      watch = commandLine.hasOption("d");
+      shardIndex = Integer.parseInt(commandLine.getOptionValue("i", "0"));
+      shardCount = Integer.parseInt(commandLine.getOptionValue("c", "1"));
+      boolean validShard = shardCount >= 1 && shardIndex >= 0 && shardIndex < shardCount;
+      if(!validShard) {
+        System.err.println("Shard index must be from 0 to shardCount - 1.");
+      }
+      queueDirectory = commandLine.getOptionValue("q");
+      leaseSeconds = Long.parseLong(commandLine.getOptionValue("l", "600"));
+      boolean validQueue = queueDirectory == null || !watch;
+      if(!validQueue) {
+        System.err.println("A work queue can't be used while watching the process directory.");
+      }
+      if(hasT && hasP && hasO && validShard && validQueue) {
         verifiedParameters = true;
       }
     }
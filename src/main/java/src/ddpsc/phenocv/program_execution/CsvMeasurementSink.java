@@ -0,0 +1,115 @@
+package src.ddpsc.phenocv.program_execution;
+
+import org.apache.commons.io.FilenameUtils;
+import src.ddpsc.phenocv.algorithms.Measurements;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records measurements as comma separated values in two files: one row per plant in the file
+ * named, and one row per image in a file beside it, named the same but ending in _images.csv.
+ *
+ * Plant rows start with the image name and plant number, image rows with the image name, and
+ * the traits follow in the order they were measured. The columns are those of the first image
+ * recorded to a new file, or those already in the header of a file being added to.
+ */
+public class CsvMeasurementSink implements MeasurementSink {
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String SEPARATOR = ",";
+  private static final String IMAGES_SUFFIX = "_images.csv";
+
+  private final Table plants;
+  private final Table images;
+
+  public CsvMeasurementSink(String filename) throws IOException {
+    Path plantsPath = Paths.get(filename);
+    Path imagesPath = plantsPath.resolveSibling(FilenameUtils.getBaseName(filename) + IMAGES_SUFFIX);
+    File directory = plantsPath.toAbsolutePath().getParent().toFile();
+    directory.mkdirs();
+    plants = new Table(plantsPath, "image" + SEPARATOR + "plant");
+    images = new Table(imagesPath, "image");
+  }
+
+  @Override
+  public synchronized void record(Measurements measurements) throws IOException {
+    String image = quoted(measurements.imageName());
+    List<Map<String, Number>> plantTraits = measurements.plantTraits();
+    for(int plant = 0; plant < plantTraits.size(); plant++) {
+      plants.write(image + SEPARATOR + plant, plantTraits.get(plant));
+    }
+    images.write(image, measurements.imageTraits());
+    plants.writer.flush();
+    images.writer.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    plants.writer.close();
+    images.writer.close();
+  }
+
+  // Names with commas, quotes or line breaks are quoted, with quotes doubled
+  private static String quoted(String value) {
+    if(value.contains(SEPARATOR) || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+    return value;
+  }
+
+  private static class Table {
+    final BufferedWriter writer;
+    final String keyColumns;
+    List<String> columns;
+
+    Table(Path path, String keyColumns) throws IOException {
+      this.keyColumns = keyColumns;
+      // A file with rows already has its header
+      if(Files.exists(path) && Files.size(path) > 0) {
+        columns = readColumns(path, keyColumns);
+      }
+      writer = Files.newBufferedWriter(path, CHARSET, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    void write(String keys, Map<String, Number> traits) throws IOException {
+      if(columns == null) {
+        columns = new ArrayList<String>(traits.keySet());
+        StringBuilder header = new StringBuilder(keyColumns);
+        for(String column : columns) {
+          header.append(SEPARATOR).append(column);
+        }
+        writer.write(header.toString());
+        writer.newLine();
+      }
+      StringBuilder row = new StringBuilder(keys);
+      for(String column : columns) {
+        Number value = traits.get(column);
+        row.append(SEPARATOR).append(value == null ? "" : value.toString());
+      }
+      writer.write(row.toString());
+      writer.newLine();
+    }
+
+    private static List<String> readColumns(Path path, String keyColumns) throws IOException {
+      BufferedReader reader = Files.newBufferedReader(path, CHARSET);
+      try {
+        String[] names = reader.readLine().split(SEPARATOR);
+        int numberKeyColumns = keyColumns.split(SEPARATOR).length;
+        return new ArrayList<String>(Arrays.asList(names).subList(numberKeyColumns, names.length));
+      } finally {
+        reader.close();
+      }
+    }
+  }
+}
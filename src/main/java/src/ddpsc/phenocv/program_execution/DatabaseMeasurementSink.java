@@ -0,0 +1,375 @@
+package src.ddpsc.phenocv.program_execution;
+
+import src.ddpsc.phenocv.algorithms.Measurements;
+import src.ddpsc.phenocv.utility.LatencyHistogram;
+import src.ddpsc.phenocv.utility.StageTimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records measurements in an embedded H2 database file, so a whole batch's measurements are
+ * in one file that can be queried with SQL, instead of in rows appended to text files.
+ *
+ * The database holds four tables:
+ *   runs           one row per run: id, started, finished
+ *   images         one row per image: run_id, image, station, capture_date, model_hash, then
+ *                  the traits of the image as a whole
+ *   plants         one row per plant: run_id, image, plant, then the traits of the plant
+ *   stage_timings  one row per run and timed stage: run_id, stage, completed and the total,
+ *                  p50, p90, p99 and max milliseconds, written when the run closes the sink
+ * Trait columns are added as traits are first recorded, named in upper snake case, so
+ * convexHullArea is CONVEX_HULL_AREA. Measurements with a trait whose column would be that of
+ * another trait, such as aB and a_b, or one of the table's own columns, are rejected. images is
+ * indexed on image, station and capture_date,
+ * and plants on image.
+ *
+ * The station is the first directory of the image's name, relative to the process directory,
+ * and is null for images directly in it. The capture date is the first date in the name
+ * written yyyy-MM-dd, yyyy_MM_dd or yyyyMMdd, null if there's none.
+ *
+ * Images are inserted {@link DatabaseMeasurementSink#BATCH_SIZE} at a time, each batch in one
+ * transaction, so a run that dies part way loses at most the last batch's measurements. Only
+ * one process can have the database open at once, so shards each need their own file.
+ */
+public class DatabaseMeasurementSink implements MeasurementSink {
+  public static final String EXTENSION = ".mv.db";
+  public static final int BATCH_SIZE = 64;
+
+  private static final Pattern CAPTURE_DATE = Pattern.compile("(?<!\\d)(\\d{4})[-_]?(\\d{2})[-_]?(\\d{2})(?!\\d)");
+  private static final double NANOSECONDS_PER_MILLISECOND = 1e6;
+  private static final String IMAGE_COLUMNS = "run_id, image, station, capture_date, model_hash";
+  private static final String PLANT_COLUMNS = "run_id, image, plant";
+
+  private final Connection connection;
+  private final long runId;
+  private final List<Measurements> pending;
+  private final Set<String> imageColumns;
+  private final Set<String> plantColumns;
+  // Trait of each trait column, including those of traits not yet inserted, so no two share one
+  private final Map<String, String> imageTraitsByColumn;
+  private final Map<String, String> plantTraitsByColumn;
+
+  public DatabaseMeasurementSink(String filename) throws IOException {
+    File file = new File(filename).getAbsoluteFile();
+    file.getParentFile().mkdirs();
+    String path = file.getPath();
+    if(path.endsWith(EXTENSION)) {
+      path = path.substring(0, path.length() - EXTENSION.length());
+    }
+    pending = new ArrayList<Measurements>();
+    imageColumns = new LinkedHashSet<String>();
+    plantColumns = new LinkedHashSet<String>();
+    imageTraitsByColumn = new HashMap<String, String>();
+    plantTraitsByColumn = new HashMap<String, String>();
+    try {
+      // Closed by close(), not by the JVM's shutdown, so interrupted runs still get their last batch in
+      connection = DriverManager.getConnection("jdbc:h2:" + path + ";DB_CLOSE_ON_EXIT=FALSE");
+      createTables();
+      runId = startRun();
+    } catch(SQLException e) {
+      throw new IOException("Unable to open measurements database " + filename, e);
+    }
+  }
+
+  @Override
+  public synchronized void record(Measurements measurements) throws IOException {
+    claimColumns("images", IMAGE_COLUMNS, imageTraitsByColumn, measurements.imageTraits().keySet());
+    for(Map<String, Number> plant : measurements.plantTraits()) {
+      claimColumns("plants", PLANT_COLUMNS, plantTraitsByColumn, plant.keySet());
+    }
+    pending.add(measurements);
+    if(pending.size() >= BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  /**
+   * Inserts the measurements recorded since the last batch, then the timings of the run.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+      finishRun();
+    } catch(SQLException e) {
+      throw new IOException("Unable to record the run's timings", e);
+    } finally {
+      try {
+        connection.close();
+      } catch(SQLException e) {
+        throw new IOException("Unable to close measurements database", e);
+      }
+    }
+  }
+
+  /**
+   * Station an image was captured at: the first directory of its name, null if it has none.
+   */
+  static String stationOf(String imageName) {
+    String name = imageName.replace('\\', '/');
+    int separator = name.indexOf('/');
+    return separator > 0 ? name.substring(0, separator) : null;
+  }
+
+  /**
+   * Date an image was captured on: the first valid date in its name, null if it has none.
+   */
+  static Date captureDateOf(String imageName) {
+    Matcher matcher = CAPTURE_DATE.matcher(imageName);
+    while(matcher.find()) {
+      try {
+        LocalDate date = LocalDate.of(Integer.parseInt(matcher.group(1)),
+          Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+        return Date.valueOf(date);
+      } catch(DateTimeException e) {
+        // Eight digits that aren't a date, such as a frame number
+      }
+    }
+    return null;
+  }
+
+  // Inserts the pending measurements in one transaction
+  private void flush() throws IOException {
+    if(pending.isEmpty()) {
+      return;
+    }
+    try {
+      addTraitColumns();
+      connection.setAutoCommit(false);
+      try {
+        insertImages();
+        insertPlants();
+        connection.commit();
+      } catch(SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+      pending.clear();
+    } catch(SQLException e) {
+      throw new IOException("Unable to insert measurements", e);
+    }
+  }
+
+  private void insertImages() throws SQLException {
+    List<String> columns = new ArrayList<String>(imageColumns);
+    PreparedStatement insert = connection.prepareStatement(insertInto("images", IMAGE_COLUMNS, columns));
+    try {
+      for(Measurements measurements : pending) {
+        insert.setLong(1, runId);
+        insert.setString(2, measurements.imageName());
+        insert.setString(3, stationOf(measurements.imageName()));
+        insert.setDate(4, captureDateOf(measurements.imageName()));
+        insert.setString(5, measurements.modelHash());
+        setTraits(insert, 6, columns, measurements.imageTraits());
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    } finally {
+      insert.close();
+    }
+  }
+
+  private void insertPlants() throws SQLException {
+    List<String> columns = new ArrayList<String>(plantColumns);
+    PreparedStatement insert = connection.prepareStatement(insertInto("plants", PLANT_COLUMNS, columns));
+    try {
+      for(Measurements measurements : pending) {
+        List<Map<String, Number>> plants = measurements.plantTraits();
+        for(int plant = 0; plant < plants.size(); plant++) {
+          insert.setLong(1, runId);
+          insert.setString(2, measurements.imageName());
+          insert.setInt(3, plant);
+          setTraits(insert, 4, columns, plants.get(plant));
+          insert.addBatch();
+        }
+      }
+      insert.executeBatch();
+    } finally {
+      insert.close();
+    }
+  }
+
+  private static void setTraits(PreparedStatement insert, int firstIndex, List<String> columns,
+                                Map<String, Number> traits) throws SQLException {
+    for(int i = 0; i < columns.size(); i++) {
+      Number value = traits.get(columns.get(i));
+      if(value == null) {
+        insert.setNull(firstIndex + i, Types.DOUBLE);
+      } else {
+        insert.setDouble(firstIndex + i, value.doubleValue());
+      }
+    }
+  }
+
+  private static String insertInto(String table, String fixedColumns, List<String> traitColumns) {
+    StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (").append(fixedColumns);
+    for(String trait : traitColumns) {
+      sql.append(", ").append(columnOf(trait));
+    }
+    int numberValues = fixedColumns.split(",").length + traitColumns.size();
+    sql.append(") VALUES (");
+    for(int i = 0; i < numberValues; i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+    }
+    return sql.append(")").toString();
+  }
+
+  // Adds a column for every trait of the pending measurements not yet seen this run
+  private void addTraitColumns() throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      for(Measurements measurements : pending) {
+        addTraitColumns(statement, "images", imageColumns, measurements.imageTraits().keySet());
+        for(Map<String, Number> plant : measurements.plantTraits()) {
+          addTraitColumns(statement, "plants", plantColumns, plant.keySet());
+        }
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  private static void addTraitColumns(Statement statement, String table, Set<String> columns,
+                                      Set<String> traits) throws SQLException {
+    for(String trait : traits) {
+      // Only once the column is there, so a failed ALTER is tried again with the next batch
+      if(!columns.contains(trait)) {
+        statement.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS " + columnOf(trait) + " DOUBLE PRECISION");
+        columns.add(trait);
+      }
+    }
+  }
+
+  // Rejects traits that would be recorded in another trait's column, or one of the table's own
+  private static void claimColumns(String table, String fixedColumns, Map<String, String> traitsByColumn,
+                                   Set<String> traits) throws IOException {
+    Set<String> ownColumns = new HashSet<String>();
+    for(String fixedColumn : fixedColumns.split(",")) {
+      ownColumns.add(fixedColumn.trim().toUpperCase());
+    }
+    for(String trait : traits) {
+      String column = columnNameOf(trait);
+      if(ownColumns.contains(column)) {
+        throw new IOException("Trait " + trait + " would be recorded in the " + column + " column " + table
+          + " already has.");
+      }
+      String claimed = traitsByColumn.get(column);
+      if(claimed == null) {
+        traitsByColumn.put(column, trait);
+      } else if(!claimed.equals(trait)) {
+        throw new IOException("Traits " + claimed + " and " + trait + " would both be recorded in column "
+          + column + " of " + table + ".");
+      }
+    }
+  }
+
+  // convexHullArea becomes "CONVEX_HULL_AREA", queryable unquoted
+  private static String columnOf(String trait) {
+    return "\"" + columnNameOf(trait) + "\"";
+  }
+
+  private static String columnNameOf(String trait) {
+    String column = trait.replaceAll("([a-z0-9])([A-Z])", "$1_$2").replaceAll("[^A-Za-z0-9_]", "_");
+    return column.toUpperCase();
+  }
+
+  private void createTables() throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute("CREATE TABLE IF NOT EXISTS runs (id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+        "started TIMESTAMP, finished TIMESTAMP)");
+      statement.execute("CREATE TABLE IF NOT EXISTS images (run_id BIGINT NOT NULL, image VARCHAR NOT NULL, " +
+        "station VARCHAR, capture_date DATE, model_hash VARCHAR)");
+      statement.execute("CREATE TABLE IF NOT EXISTS plants (run_id BIGINT NOT NULL, image VARCHAR NOT NULL, " +
+        "plant INT NOT NULL)");
+      statement.execute("CREATE TABLE IF NOT EXISTS stage_timings (run_id BIGINT NOT NULL, stage VARCHAR NOT NULL, " +
+        "completed BIGINT, total_ms DOUBLE PRECISION, p50_ms DOUBLE PRECISION, p90_ms DOUBLE PRECISION, " +
+        "p99_ms DOUBLE PRECISION, max_ms DOUBLE PRECISION)");
+      statement.execute("CREATE INDEX IF NOT EXISTS images_image ON images (image)");
+      statement.execute("CREATE INDEX IF NOT EXISTS images_station ON images (station)");
+      statement.execute("CREATE INDEX IF NOT EXISTS images_capture_date ON images (capture_date)");
+      statement.execute("CREATE INDEX IF NOT EXISTS plants_image ON plants (image)");
+    } finally {
+      statement.close();
+    }
+  }
+
+  private long startRun() throws SQLException {
+    PreparedStatement insert = connection.prepareStatement("INSERT INTO runs (started) VALUES (?)",
+      Statement.RETURN_GENERATED_KEYS);
+    try {
+      insert.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+      insert.executeUpdate();
+      ResultSet keys = insert.getGeneratedKeys();
+      keys.next();
+      return keys.getLong(1);
+    } finally {
+      insert.close();
+    }
+  }
+
+  private void finishRun() throws SQLException {
+    connection.setAutoCommit(false);
+    try {
+      PreparedStatement insert = connection.prepareStatement("INSERT INTO stage_timings " +
+        "(run_id, stage, completed, total_ms, p50_ms, p90_ms, p99_ms, max_ms) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+      try {
+        for(StageTimer.Stage stage : StageTimer.Stage.values()) {
+          LatencyHistogram histogram = StageTimer.histogramOf(stage);
+          if(histogram.count() == 0) {
+            continue;
+          }
+          insert.setLong(1, runId);
+          insert.setString(2, stage.toString());
+          insert.setLong(3, histogram.count());
+          insert.setDouble(4, histogram.total() / NANOSECONDS_PER_MILLISECOND);
+          insert.setDouble(5, histogram.valueAt(0.50) / NANOSECONDS_PER_MILLISECOND);
+          insert.setDouble(6, histogram.valueAt(0.90) / NANOSECONDS_PER_MILLISECOND);
+          insert.setDouble(7, histogram.valueAt(0.99) / NANOSECONDS_PER_MILLISECOND);
+          insert.setDouble(8, histogram.max() / NANOSECONDS_PER_MILLISECOND);
+          insert.addBatch();
+        }
+        insert.executeBatch();
+      } finally {
+        insert.close();
+      }
+      PreparedStatement update = connection.prepareStatement("UPDATE runs SET finished = ? WHERE id = ?");
+      try {
+        update.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+        update.setLong(2, runId);
+        update.executeUpdate();
+      } finally {
+        update.close();
+      }
+      connection.commit();
+    } catch(SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+}
@@ -3,7 +3,6 @@ package src.ddpsc.phenocv.program_execution;
 import src.ddpsc.phenocv.algorithms.ColorIsolation;
 import src.ddpsc.phenocv.computer_vision.ColorImage;
 import src.ddpsc.phenocv.computer_vision.ColorSpace;
-import src.ddpsc.phenocv.computer_vision.GrayImage;
 import src.ddpsc.phenocv.computer_vision.HistogramPartition;
 import src.ddpsc.phenocv.utility.Tuple;
 
@@ -16,42 +15,62 @@ import static java.util.Collections.synchronizedList;
 
 public class ImageProcessor {
   private final List<Tuple<String, ColorImage>> imagesToProcess;
-  private final List<Tuple<String, ColorImage>> resultsImagesTuples;
+  private final List<ProcessedImage> resultsImages;
   private final ColorIsolation colorIsolation;
+  private final OutputMode outputMode;
+  private final MeasurementSink measurementSink;
   private final int numThreads;
 
   public ImageProcessor(ImagesIO loadedImages, int numThreads) {
+    this(loadedImages, trainedColorIsolation(loadedImages, numThreads), numThreads);
+  }
+
+  public ImageProcessor(ImagesIO loadedImages, ColorIsolation colorIsolation, int numThreads) {
     this.numThreads = numThreads;
+    this.colorIsolation = colorIsolation;
+    this.outputMode = loadedImages.outputMode();
+    this.measurementSink = loadedImages.measurementSink();
     imagesToProcess = synchronizedList(loadedImages.processImageSet);
-    resultsImagesTuples = synchronizedList(new ArrayList<Tuple<String, ColorImage>>());
-    List<Tuple<ColorImage, GrayImage>> trainingImageSet = loadedImages.trainingImageSet;
-    colorIsolation = new ColorIsolation(new HistogramPartition(ColorSpace.HSV, 100));
-    colorIsolation.train(trainingImageSet);
+    resultsImages = synchronizedList(new ArrayList<ProcessedImage>());
+  }
+
+  /**
+   * Trains a ColorIsolation on the training pairs found by loadedImages, decoding and
+   * accumulating them on numThreads threads.
+   */
+  public static ColorIsolation trainedColorIsolation(ImagesIO loadedImages, int numThreads) {
+    List<Tuple<String, String>> trainingFilePairs = loadedImages.trainingFilePairs;
+    ColorIsolation colorIsolation = new ColorIsolation(new HistogramPartition(ColorSpace.HSV, 100));
+    colorIsolation.trainByFiles(trainingFilePairs, numThreads);
+    return colorIsolation;
   }
 
-  public List<Tuple<String, ColorImage>> getProcessedImages() throws Exception {
-    if(imagesToProcess.size() != resultsImagesTuples.size()) {
+  public List<ProcessedImage> getProcessedImages() throws Exception {
+    if(!imagesToProcess.isEmpty()) {
       ExecutorService pool = Executors.newFixedThreadPool(numThreads);
-      List<Future<Tuple<String, ColorImage>>> results = new ArrayList<Future<Tuple<String, ColorImage>>>();
+      List<Future<ProcessedImage>> results = new ArrayList<Future<ProcessedImage>>();
       for(Tuple<String, ColorImage> imageTuple : imagesToProcess) {
-        Callable<Tuple<String, ColorImage>> callable = new ImageProcessorCallable(colorIsolation, imageTuple);
-        Future<Tuple<String, ColorImage>> futureImageTuple = pool.submit(callable);
-        results.add(futureImageTuple);
+        Callable<ProcessedImage> callable = new ImageProcessorCallable(colorIsolation, imageTuple, outputMode,
+          measurementSink);
+        Future<ProcessedImage> futureProcessedImage = pool.submit(callable);
+        results.add(futureProcessedImage);
       }
-      for(Future<Tuple<String, ColorImage>> result : results) {
+      // The workers own the decoded images now, so they no longer belong to the loaded images
+      imagesToProcess.clear();
+      for(Future<ProcessedImage> result : results) {
         addImageToResults(result.get());
       }
       pool.shutdown();
       try { pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS); }
       catch(Exception e) { throw new Exception(e); }
     }
-    return resultsImagesTuples;
+    return resultsImages;
   }
 
-  private void addImageToResults(Tuple<String, ColorImage> imageTuple) {
-    synchronized(resultsImagesTuples) {
-      resultsImagesTuples.add(imageTuple);
-      resultsImagesTuples.notifyAll();
+  private void addImageToResults(ProcessedImage processedImage) {
+    synchronized(resultsImages) {
+      resultsImages.add(processedImage);
+      resultsImages.notifyAll();
     }
   }
 }
@@ -12,22 +12,30 @@ import java.util.concurrent.Callable;
  * Time: 10:36 AM
  * Description:
  */
-public class ImageProcessorCallable implements Callable <Tuple<String, ColorImage>> {
+public class ImageProcessorCallable implements Callable <ProcessedImage> {
 
   private final ColorIsolation colorIsolation;
   private final String imageName;
   private final ColorImage colorImage;
+  private final OutputMode outputMode;
+  private final MeasurementSink measurementSink;
 
   public ImageProcessorCallable(ColorIsolation colorIsolation, Tuple<String, ColorImage> imageTupleToIsolate) {
+    this(colorIsolation, imageTupleToIsolate, OutputMode.IMAGE, null);
+  }
+
+  public ImageProcessorCallable(ColorIsolation colorIsolation, Tuple<String, ColorImage> imageTupleToIsolate,
+                                OutputMode outputMode, MeasurementSink measurementSink) {
     this.colorIsolation = colorIsolation;
     this.imageName = imageTupleToIsolate.item1;
     this.colorImage = imageTupleToIsolate.item2;
+    this.outputMode = outputMode;
+    this.measurementSink = measurementSink;
   }
 
   @Override
-  public Tuple<String, ColorImage> call() throws Exception {
-    ColorImage imageCopy = (ColorImage)colorImage.copy();
-    colorIsolation.fastIsolation(imageCopy);
-    return new Tuple<String, ColorImage>(imageName, imageCopy);
+  public ProcessedImage call() throws Exception {
+    // The image is taken over, not copied: it's isolated in place and becomes the output or is released
+    return outputMode.process(imageName, colorImage, colorIsolation, measurementSink);
   }
 }
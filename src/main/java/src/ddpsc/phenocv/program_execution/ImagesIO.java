@@ -1,38 +1,109 @@
 package src.ddpsc.phenocv.program_execution;
 
 import src.ddpsc.phenocv.computer_vision.ColorImage;
-import src.ddpsc.phenocv.computer_vision.GrayImage;
-import src.ddpsc.phenocv.utility.Lists;
+import src.ddpsc.phenocv.computer_vision.ImageFormat;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
 import src.ddpsc.phenocv.utility.Tuple;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 import org.apache.commons.io.*;
 
 public class ImagesIO {
+  private static final String OFFSET_EXTENSION = ".offset.tsv";
 
-  public List<Tuple<ColorImage, GrayImage>> trainingImageSet;
+  public List<Tuple<String, String>> trainingFilePairs;
   public List<Tuple<String, ColorImage>> processImageSet;
+  public List<File> processFiles;
+  public String processDirectory;
   public String outputDirectory;
+  private ImageFormat outputFormat = ImageFormat.DEFAULT_PNG;
+  private OutputMode outputMode = OutputMode.IMAGE;
+  private MeasurementSink measurementSink;
+  private RunManifest manifest;
+  private String modelHash;
+  private Path processRoot;
+  private Path excludedDirectory;
+  private Stream<Path> processDirectoryWalk;
+  private BufferedReader workListReader;
+  private Iterator<Path> listedProcessPaths;
+  private File peekedProcessFile;
+  private Map<String, File> handedOutFiles;
+  private int shardIndex = 0;
+  private int shardCount = 1;
+  private boolean skipProcessed;
+  private int skippedImages;
+  private WorkQueue workQueue;
+  private Iterator<File> retryProcessFiles;
+  private List<File> leasedProcessFiles;
+  private long retryAtMillis; // when to go round the leased images again, 0 until the listing runs out
 
   public ImagesIO(String trainingDirectory, String processDirectory, String outputDirectory) throws Exception {
-    trainingImageSet = new ArrayList<Tuple<ColorImage, GrayImage>>();
+    this(trainingDirectory, processDirectory, outputDirectory, true);
+  }
+
+  /**
+   * Pairs up the training images with their masks and finds the images to process. A null
+   * training directory finds no training images, for use with a saved model. Training
+   * images are left on disk for the trainer to decode.
+   *
+   * The process directory is searched for images recursively, and lazily: the images to process
+   * are found one at a time as nextProcessFile hands them out, so processing starts as soon as
+   * the first is found and the directory tree is never held in memory. A text file in place of
+   * the process directory is a work list, read just as lazily: one image per line, relative to
+   * the work list's directory or absolute, with blank lines and lines starting with # ignored.
+   *
+   * When decodeProcessImages is false the images to process are left on disk, so a streaming
+   * consumer can decode them one at a time.
+   */
+  public ImagesIO(String trainingDirectory, String processDirectory, String outputDirectory,
+                  boolean decodeProcessImages) throws Exception {
+    this(trainingDirectory, processDirectory, outputDirectory, decodeProcessImages, true);
+  }
+
+  /**
+   * When requireProcessImages is false an empty process directory isn't an error, for
+   * consumers that wait for images to arrive.
+   */
+  public ImagesIO(String trainingDirectory, String processDirectory, String outputDirectory,
+                  boolean decodeProcessImages, boolean requireProcessImages) throws Exception {
+    this.processDirectory = processDirectory;
+    trainingFilePairs = new ArrayList<Tuple<String, String>>();
     processImageSet = new ArrayList<Tuple<String, ColorImage>>();
-    if(loadTrainingImages(trainingDirectory)) {
-      System.out.println("Loaded " + trainingImageSet.size() + " pairs of training images + masks.");
+    processFiles = new ArrayList<File>();
+    handedOutFiles = new ConcurrentHashMap<String, File>();
+    leasedProcessFiles = new ArrayList<File>();
+    if(trainingDirectory == null) {
+      // Isolating with a saved model, nothing to train on
+    } else if(listTrainingImages(trainingDirectory)) {
+      System.out.println("Found " + trainingFilePairs.size() + " pairs of training images + masks.");
     } else {
       throw new Exception("Unable to load training images!");
     }
-    if(loadProcessImages(processDirectory)) {
-      System.out.println("Loaded " + processImageSet.size() + " images to process.");
+    if(listProcessImages(processDirectory, outputDirectory) || !requireProcessImages) {
+      System.out.println("Listing images to process from " + processDirectory + ".");
     } else {
       throw new Exception("Unable to load images to process!");
     }
+    if(decodeProcessImages) {
+      loadProcessImages();
+    }
     if(verifyOutputDirectory(outputDirectory)) {
       System.out.println("Verified output directory.");
     } else {
@@ -40,26 +111,28 @@ public class ImagesIO {
     }
   }
 
-  private boolean loadTrainingImages(String trainingDirectory) {
+  private boolean listTrainingImages(String trainingDirectory) {
     boolean success = false;
-    List<Tuple<String, String>> trainingImageFilenamePairs = new Vector<Tuple<String, String>>();
     File trainingDirectoryFile = new File(trainingDirectory);
     if(!trainingDirectoryFile.exists()
       && trainingDirectoryFile.isDirectory()) {
       success = false;
     } else {
-      List<File> imageFiles = new Vector<File>();
-      File[] allFiles = trainingDirectoryFile.listFiles();
-      for(File file : allFiles) {
-        String fileName = file.getName(), fileExtension = "";
-        int i = fileName.lastIndexOf('.');
-        if(i > 0) { fileExtension = fileName.substring(i+1); }
-        if(fileExtension.equalsIgnoreCase("png") ||
-          fileExtension.equalsIgnoreCase("jpg") ||
-          fileExtension.equalsIgnoreCase("jpeg") ||
-          fileExtension.equalsIgnoreCase("tiff")) {
-          imageFiles.add(file);
+      // Pairing needs every name, but only the images' are kept
+      List<File> imageFiles = new ArrayList<File>();
+      try {
+        DirectoryStream<Path> allFiles = Files.newDirectoryStream(trainingDirectoryFile.toPath());
+        try {
+          for(Path path : allFiles) {
+            if(isImageFile(path.toFile())) {
+              imageFiles.add(path.toFile());
+            }
+          }
+        } finally {
+          allFiles.close();
         }
+      } catch(IOException e) {
+        return false;
       }
       if(imageFiles.size() > 0) {
         Collections.sort(imageFiles);
@@ -91,53 +164,55 @@ public class ImagesIO {
             int lastIndexOfUnderscore = maskBaseFilename.lastIndexOf('_');
             String maskFilenameWithoutUnderscoreMask = maskBaseFilename.substring(0, lastIndexOfUnderscore);
             if(imageBaseFilename.contentEquals(maskFilenameWithoutUnderscoreMask)) {
-              trainingImageFilenamePairs.add(new Tuple<String, String>(imagePath, maskPath));
+              trainingFilePairs.add(new Tuple<String, String>(imagePath, maskPath));
             }
           }
-
-          if(trainingImageFilenamePairs.size() > 0) {
-            trainingImageSet = Lists.loadMaskedImagePairs(trainingImageFilenamePairs);
-            success = true;
-          } else {
-            success = false;
-          }
         }
+        success = trainingFilePairs.size() > 0;
       }
     }
     return success;
   }
 
-  private boolean loadProcessImages(String processDirectory) {
-    boolean success = false;
-    File processDirectoryFile = new File(processDirectory);
-    if(!processDirectoryFile.exists()
-      && processDirectoryFile.isDirectory()) {
-      success=false;
+  private boolean listProcessImages(String processDirectory, String outputDirectory) throws IOException {
+    Path processPath = Paths.get(processDirectory).toAbsolutePath().normalize();
+    if(Files.isDirectory(processPath)) {
+      processRoot = processPath;
+      processDirectoryWalk = Files.walk(processPath);
+      listedProcessPaths = processDirectoryWalk.iterator();
+    } else if(Files.isRegularFile(processPath) && isImageFile(processPath.toFile())) {
+      // Just the one image
+      processRoot = processPath.getParent();
+      listedProcessPaths = Collections.singletonList(processPath).iterator();
+    } else if(Files.isRegularFile(processPath)) {
+      processRoot = processPath.getParent();
+      workListReader = Files.newBufferedReader(processPath, Charset.forName("UTF-8"));
+      listedProcessPaths = new WorkListPaths();
     } else {
-      List<File> imageFiles = new Vector<File>();
-      File[] allFiles = processDirectoryFile.listFiles();
-      for(File file : allFiles) {
-        String fileName = file.getName(), fileExtension = "";
-        int i = fileName.lastIndexOf('.');
-        if(i > 0) { fileExtension = fileName.substring(i+1); }
-        if(fileExtension.equalsIgnoreCase("png") ||
-          fileExtension.equalsIgnoreCase("jpg") ||
-          fileExtension.equalsIgnoreCase("jpeg") ||
-          fileExtension.equalsIgnoreCase("tiff")) {
-          imageFiles.add(file);
-        }
-      }
+      return false;
+    }
+    // Outputs written to a directory inside the process directory aren't images to process
+    Path outputPath = Paths.get(outputDirectory).toAbsolutePath().normalize();
+    if(outputPath.startsWith(processRoot) && !outputPath.equals(processRoot)) {
+      excludedDirectory = outputPath;
+    }
+    peekedProcessFile = nextListedProcessFile();
+    return peekedProcessFile != null;
+  }
 
-      if(imageFiles.size() > 0) {
-        List<ColorImage> colorImages = new Vector<ColorImage>();
-        for(File image : imageFiles) {
-          Tuple<String, ColorImage> imageToAdd = new Tuple<String, ColorImage>(image.getName(), new ColorImage(image.getPath()));
-          processImageSet.add(imageToAdd);
-        }
-        success = true;
-      }
+  /**
+   * Decodes every image to process into processImageSet, and lists them in processFiles.
+   */
+  public void loadProcessImages() throws IOException, InterruptedException {
+    File image;
+    while((image = nextProcessFile(0)) != null) {
+      processFiles.add(image);
+      long start = StageTimer.start();
+      Tuple<String, ColorImage> imageToAdd = new Tuple<String, ColorImage>(nameOf(image), new ColorImage(image.getPath()));
+      StageTimer.record(Stage.DECODE, start);
+      processImageSet.add(imageToAdd);
     }
-    return success;
+    System.out.println("Loaded " + processImageSet.size() + " images to process.");
   }
 
   private boolean verifyOutputDirectory(String outputDirectory) throws Exception {
@@ -155,17 +230,372 @@ public class ImagesIO {
     return success;
   }
 
-  public boolean writeProcessedImages(List<Tuple<String, ColorImage>> imagesTuples) {
+  public boolean writeProcessedImages(List<ProcessedImage> processedImages) {
     boolean success = false;
-    for(Tuple<String, ColorImage> imageTuple : imagesTuples) {
-      String inputFilename = imageTuple.item1;
-      String inputFileBasename = FilenameUtils.getBaseName(inputFilename);
-      String outputFilename = inputFileBasename + "_processed.png";
-      ColorImage outputImage = imageTuple.item2;
-      Path outputFilePath = Paths.get(outputDirectory + File.separator + outputFilename);
-      outputImage.writeTo(outputFilePath.toString());
+    for(ProcessedImage processedImage : processedImages) {
+      long start = StageTimer.start();
+      byte[] encoded = processedImage.encode(outputFormat);
+      StageTimer.record(Stage.ENCODE, start);
+      // Only the encoded bytes are written, so the pixels can go before the next image is encoded
+      processedImage.release();
+      try {
+        writeProcessed(processedImage, encoded);
+      } catch(IOException e) {
+        System.out.println("Unable to write " + processedImage.name() + ": " + e.getMessage());
+        continue;
+      }
+      try {
+        recordProcessed(processedImage.name());
+      } catch(IOException e) {
+        System.out.println("Unable to record " + processedImage.name() + " in the run manifest: " + e.getMessage());
+      }
     }
     return success;
   }
 
+  /**
+   * Writes an encoded processed image to its output path, and its offset sidecar when cropped,
+   * creating the directory they're in below the output directory if need be.
+   */
+  public void writeProcessed(ProcessedImage processedImage, byte[] encoded) throws IOException {
+    long start = StageTimer.start();
+    Path outputPath = outputPathFor(processedImage.name());
+    Files.createDirectories(outputPath.getParent());
+    Files.write(outputPath, encoded);
+    if(outputMode == OutputMode.CROP) {
+      Files.write(offsetPathFor(processedImage.name()), processedImage.offsetTable().getBytes(Charset.forName("UTF-8")));
+    }
+    StageTimer.record(Stage.WRITE, start);
+  }
+
+  /**
+   * Writes processed images in the supplied format instead of PNG with OpenCV's default
+   * settings. Must be called before anything is written, it changes the output paths.
+   */
+  public void useOutputFormat(ImageFormat outputFormat) {
+    this.outputFormat = outputFormat;
+  }
+
+  /**
+   * The format processed images are written in.
+   */
+  public ImageFormat outputFormat() {
+    return outputFormat;
+  }
+
+  /**
+   * Writes the supplied output for each image instead of the whole isolated image. Must be
+   * called before anything is written, it changes the output paths.
+   */
+  public void useOutputMode(OutputMode outputMode) {
+    this.outputMode = outputMode;
+  }
+
+  /**
+   * What is written for each processed image.
+   */
+  public OutputMode outputMode() {
+    return outputMode;
+  }
+
+  /**
+   * Records the traits of the plants in each image in the supplied sink as it's isolated.
+   */
+  public void useMeasurementSink(MeasurementSink measurementSink) {
+    this.measurementSink = measurementSink;
+  }
+
+  /**
+   * Where the traits of each image's plants are recorded, null if they aren't measured.
+   */
+  public MeasurementSink measurementSink() {
+    return measurementSink;
+  }
+
+  /**
+   * Hands out the images to process through nextProcessFile, claiming each in the supplied
+   * work queue first, and marks them done in it as they are written.
+   */
+  public void useWorkQueue(WorkQueue workQueue) {
+    this.workQueue = workQueue;
+  }
+
+  /**
+   * Returns the next image to process, or null once there are none left.
+   *
+   * Images are found as they are asked for, skipping those outside the selected shard and,
+   * after skipProcessed, those already processed. With a work queue each image is claimed as
+   * it is handed out, and those claimed by other processes are skipped, so only images about
+   * to be processed are held. Once every image has been tried, those leased to other
+   * processes are tried again every leaseRetryMillis until each is done, failed, or reclaimed
+   * after its lease ran out, so a batch isn't finished while a dead process still holds part
+   * of it. The lock is let go of while waiting to retry, so images can be recorded meanwhile.
+   */
+  public synchronized File nextProcessFile(long leaseRetryMillis) throws IOException, InterruptedException {
+    while(true) {
+      File file = nextListedProcessFile();
+      if(file == null) {
+        if(leasedProcessFiles.isEmpty()) {
+          return null;
+        }
+        long now = System.currentTimeMillis();
+        if(retryAtMillis == 0) {
+          retryAtMillis = now + leaseRetryMillis;
+        }
+        if(now < retryAtMillis) {
+          wait(retryAtMillis - now);
+          continue;
+        }
+        // Go round the images leased to others again
+        retryAtMillis = 0;
+        retryProcessFiles = leasedProcessFiles.iterator();
+        leasedProcessFiles = new ArrayList<File>();
+      } else if(workQueue == null) {
+        return handOut(file);
+      } else {
+        WorkQueue.Claim claim = workQueue.claim(nameOf(file));
+        if(claim == WorkQueue.Claim.CLAIMED) {
+          return handOut(file);
+        } else if(claim == WorkQueue.Claim.LEASED) {
+          leasedProcessFiles.add(file);
+        }
+      }
+    }
+  }
+
+  private File handOut(File file) {
+    handedOutFiles.put(nameOf(file), file);
+    return file;
+  }
+
+  // The next image listed, or left to retry, that this process should try to process
+  private File nextListedProcessFile() throws IOException {
+    if(peekedProcessFile != null) {
+      File peeked = peekedProcessFile;
+      peekedProcessFile = null;
+      return peeked;
+    }
+    if(retryProcessFiles != null) {
+      return retryProcessFiles.hasNext() ? retryProcessFiles.next() : null;
+    }
+    try {
+      while(listedProcessPaths != null && listedProcessPaths.hasNext()) {
+        Path path = listedProcessPaths.next();
+        File file = path.toFile();
+        if(!isImageFile(file) || !Files.isRegularFile(path)
+          || (excludedDirectory != null && path.startsWith(excludedDirectory))) {
+          continue;
+        }
+        if(!isInShard(file)) {
+          continue;
+        }
+        if(skipProcessed && isProcessed(file)) {
+          skippedImages++;
+          continue;
+        }
+        return file;
+      }
+    } catch(UncheckedIOException e) {
+      throw e.getCause();
+    }
+    closeProcessListing();
+    return null;
+  }
+
+  private void closeProcessListing() throws IOException {
+    listedProcessPaths = null;
+    if(processDirectoryWalk != null) {
+      processDirectoryWalk.close();
+      processDirectoryWalk = null;
+    }
+    if(workListReader != null) {
+      workListReader.close();
+      workListReader = null;
+    }
+  }
+
+  /**
+   * The name an image to process goes by: its path relative to the process directory, or just
+   * its file name when it's somewhere else. Its output is written to the same path relative
+   * to the output directory.
+   */
+  public String nameOf(File file) {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    if(processRoot != null && path.startsWith(processRoot)) {
+      return processRoot.relativize(path).toString();
+    }
+    return file.getName();
+  }
+
+  /**
+   * Records every image written from here on in the manifest, as isolated with the model
+   * of the supplied hash.
+   */
+  public void useManifest(RunManifest manifest, String modelHash) {
+    this.manifest = manifest;
+    this.modelHash = modelHash;
+  }
+
+  /**
+   * Whether the file has one of the image extensions phenocv processes.
+   */
+  public static boolean isImageFile(File file) {
+    String fileName = file.getName(), fileExtension = "";
+    int i = fileName.lastIndexOf('.');
+    if(i > 0) { fileExtension = fileName.substring(i+1); }
+    return fileExtension.equalsIgnoreCase("png") ||
+      fileExtension.equalsIgnoreCase("jpg") ||
+      fileExtension.equalsIgnoreCase("jpeg") ||
+      fileExtension.equalsIgnoreCase("tiff");
+  }
+
+  /**
+   * Whether the manifest shows the file was already processed with the current model and
+   * hasn't changed since. Always false without a manifest.
+   */
+  public boolean isProcessed(File file) throws IOException {
+    return manifest != null && manifest.isProcessed(file, modelHash, outputPathFor(nameOf(file)));
+  }
+
+  /**
+   * Only hands out the images of one shard of the process directory from nextProcessFile, so
+   * shardCount processes given the same directory, each with a different shardIndex, split it
+   * between them without coordinating. Which shard an image is in only depends on its name,
+   * so every process agrees on it, and images written to the same output file are always in
+   * the same shard. Must be called before loadProcessImages.
+   */
+  public synchronized void selectShard(int shardIndex, int shardCount) {
+    if(shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+      throw new IllegalArgumentException("Shard index must be from 0 to " + (shardCount - 1) +
+        ", not " + shardIndex + ".");
+    }
+    this.shardIndex = shardIndex;
+    this.shardCount = shardCount;
+    if(peekedProcessFile != null && !isInShard(peekedProcessFile)) {
+      peekedProcessFile = null;
+    }
+  }
+
+  /**
+   * Whether the file is in the shard selected with selectShard. Every file is when no shard
+   * was selected.
+   */
+  public boolean isInShard(File file) {
+    return shardCount == 1 || shardOf(FilenameUtils.removeExtension(nameOf(file)), shardCount) == shardIndex;
+  }
+
+  // 64 bit FNV-1a of the name, the same on every machine and JVM
+  private static int shardOf(String name, int shardCount) {
+    long hash = 0xcbf29ce484222325L;
+    for(byte b : name.getBytes(Charset.forName("UTF-8"))) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return (int) ((hash & Long.MAX_VALUE) % shardCount);
+  }
+
+  /**
+   * Stops handing out images the manifest shows were already processed with the current
+   * model, and haven't changed since, from nextProcessFile. Must be called before
+   * loadProcessImages.
+   */
+  public synchronized void skipProcessed() throws IOException {
+    skipProcessed = true;
+    if(peekedProcessFile != null && isProcessed(peekedProcessFile)) {
+      peekedProcessFile = null;
+      skippedImages++;
+    }
+  }
+
+  /**
+   * Number of images skipped so far for having already been processed.
+   */
+  public synchronized int skippedImages() {
+    return skippedImages;
+  }
+
+  /**
+   * Records in the manifest and work queue, if there are any, that the image of the supplied
+   * input name has been written.
+   */
+  public void recordProcessed(String inputName) throws IOException {
+    File file = handedOutFiles.get(inputName);
+    recordProcessed(file != null ? file : processRoot.resolve(inputName).toFile());
+  }
+
+  /**
+   * Records in the manifest and work queue, if there are any, that the image of the supplied
+   * input file has been written.
+   */
+  public void recordProcessed(File inputFile) throws IOException {
+    handedOutFiles.remove(nameOf(inputFile));
+    if(manifest != null) {
+      manifest.record(inputFile, modelHash);
+    }
+    if(workQueue != null) {
+      workQueue.complete(nameOf(inputFile));
+    }
+  }
+
+  /**
+   * The file a processed image is written to, given the name of its input file. The directory
+   * it's in, below the output directory, may not exist until the image is written.
+   */
+  public Path outputPathFor(String inputName) {
+    return outputPathFor(inputName, outputMode.suffix() + outputMode.extensionFor(outputFormat));
+  }
+
+  /**
+   * The file the offset of a cropped output is recorded in, next to the output.
+   */
+  public Path offsetPathFor(String inputName) {
+    return outputPathFor(inputName, outputMode.suffix() + OFFSET_EXTENSION);
+  }
+
+  private Path outputPathFor(String inputName, String suffix) {
+    String inputFileBasename = FilenameUtils.getBaseName(inputName);
+    String outputFilename = inputFileBasename + suffix;
+    String inputDirectory = FilenameUtils.getPath(inputName);
+    if(inputDirectory.isEmpty()) {
+      return Paths.get(outputDirectory + File.separator + outputFilename);
+    }
+    return new File(new File(outputDirectory, inputDirectory), outputFilename).toPath();
+  }
+
+  // Paths of the images in the work list, read a line at a time as they are asked for
+  private class WorkListPaths implements Iterator<Path> {
+    private Path next;
+
+    @Override
+    public boolean hasNext() {
+      try {
+        String line;
+        while(next == null && (line = workListReader.readLine()) != null) {
+          line = line.trim();
+          if(!line.isEmpty() && !line.startsWith("#")) {
+            next = processRoot.resolve(line).normalize();
+          }
+        }
+      } catch(IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return next != null;
+    }
+
+    @Override
+    public Path next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Path path = next;
+      next = null;
+      return path;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
 }
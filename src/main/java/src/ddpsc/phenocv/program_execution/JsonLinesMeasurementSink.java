@@ -0,0 +1,91 @@
+package src.ddpsc.phenocv.program_execution;
+
+import src.ddpsc.phenocv.algorithms.Measurements;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Records measurements as JSON lines, one object per image:
+ *   {"image":"name","traits":{...},"plants":[{...},...]}
+ * with the traits of the image as a whole, then those of each plant by plant number.
+ */
+public class JsonLinesMeasurementSink implements MeasurementSink {
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final BufferedWriter writer;
+
+  public JsonLinesMeasurementSink(String filename) throws IOException {
+    Path path = Paths.get(filename);
+    path.toAbsolutePath().getParent().toFile().mkdirs();
+    writer = Files.newBufferedWriter(path, CHARSET, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  @Override
+  public synchronized void record(Measurements measurements) throws IOException {
+    StringBuilder line = new StringBuilder();
+    line.append("{\"image\":");
+    appendString(line, measurements.imageName());
+    line.append(",\"traits\":");
+    appendTraits(line, measurements.imageTraits());
+    line.append(",\"plants\":[");
+    boolean first = true;
+    for(Map<String, Number> plant : measurements.plantTraits()) {
+      if(!first) {
+        line.append(',');
+      }
+      appendTraits(line, plant);
+      first = false;
+    }
+    line.append("]}");
+    writer.write(line.toString());
+    writer.newLine();
+    writer.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  private static void appendTraits(StringBuilder line, Map<String, Number> traits) {
+    line.append('{');
+    boolean first = true;
+    for(Map.Entry<String, Number> trait : traits.entrySet()) {
+      if(!first) {
+        line.append(',');
+      }
+      appendString(line, trait.getKey());
+      line.append(':').append(valueOf(trait.getValue()));
+      first = false;
+    }
+    line.append('}');
+  }
+
+  // JSON has no NaN or infinities
+  private static String valueOf(Number value) {
+    double asDouble = value.doubleValue();
+    return Double.isNaN(asDouble) || Double.isInfinite(asDouble) ? "null" : value.toString();
+  }
+
+  private static void appendString(StringBuilder line, String value) {
+    line.append('"');
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if(c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if(c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+}
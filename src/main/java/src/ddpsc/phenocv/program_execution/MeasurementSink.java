@@ -0,0 +1,40 @@
+package src.ddpsc.phenocv.program_execution;
+
+import src.ddpsc.phenocv.algorithms.Measurements;
+
+import java.io.IOException;
+
+/**
+ * Where the traits measured of each isolated image are recorded, as images are isolated.
+ *
+ * Sinks are shared by every isolating thread, so recording must be thread safe. Records are
+ * appended to what the sink already holds, so a rerun adds to the measurements of earlier
+ * runs; a later record for an image supersedes earlier ones.
+ */
+public interface MeasurementSink {
+
+  /**
+   * Records the traits measured of one image.
+   */
+  void record(Measurements measurements) throws IOException;
+
+  void close() throws IOException;
+
+  /**
+   * Opens the sink for the supplied file, picked by its extension: .csv for comma separated
+   * values, .jsonl or .json for JSON lines, .mv.db for an embedded H2 database.
+   */
+  static MeasurementSink open(String filename) throws IOException {
+    String lowerCase = filename.toLowerCase();
+    if(lowerCase.endsWith(".csv")) {
+      return new CsvMeasurementSink(filename);
+    }
+    if(lowerCase.endsWith(".jsonl") || lowerCase.endsWith(".json")) {
+      return new JsonLinesMeasurementSink(filename);
+    }
+    if(lowerCase.endsWith(DatabaseMeasurementSink.EXTENSION)) {
+      return new DatabaseMeasurementSink(filename);
+    }
+    throw new IllegalArgumentException("Unknown measurements file type " + filename + ", use .csv, .jsonl or .mv.db.");
+  }
+}
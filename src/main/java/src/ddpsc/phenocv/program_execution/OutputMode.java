@@ -0,0 +1,172 @@
+package src.ddpsc.phenocv.program_execution;
+
+import org.opencv.core.Rect;
+import src.ddpsc.phenocv.algorithms.ColorAnalysis;
+import src.ddpsc.phenocv.algorithms.ColorIsolation;
+import src.ddpsc.phenocv.algorithms.Isolation;
+import src.ddpsc.phenocv.algorithms.Measurements;
+import src.ddpsc.phenocv.algorithms.Morphology;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.computer_vision.ImageFormat;
+import src.ddpsc.phenocv.utility.StageTimer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+
+/**
+ * What is written for each isolated image.
+ *
+ * IMAGE writes the whole image with everything but the plant blacked out. MASK only writes
+ * the 1-channel mask of the plant. CROP writes the image cropped to the box bounding the
+ * plant, still blacked out around it, alongside a sidecar recording where the box lies in
+ * the original image. VECTOR writes no pixels at all but the outlines and holes of the plant
+ * as GeoJSON polygons, which can be drawn back into the mask when it's needed. On large
+ * images where the plant covers a small part of the frame, MASK and CROP encode and write far
+ * fewer bytes than IMAGE, and VECTOR fewer still.
+ */
+public enum OutputMode {
+  IMAGE("image", "_processed"),
+  MASK("mask", "_processed_mask"),
+  CROP("crop", "_processed_crop"),
+  VECTOR("vector", "_processed_shapes");
+
+  private static final String GEOJSON_EXTENSION = ".geojson";
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final String name;
+  private final String suffix;
+
+  OutputMode(String name, String suffix) {
+    this.name = name;
+    this.suffix = suffix;
+  }
+
+  /**
+   * Returns the mode of the supplied name: image, mask, crop or vector.
+   */
+  public static OutputMode parse(String name) {
+    for(OutputMode mode : values()) {
+      if(mode.name.equalsIgnoreCase(name.trim())) {
+        return mode;
+      }
+    }
+    throw new IllegalArgumentException("Unknown output mode " + name + ", use image, mask, crop or vector.");
+  }
+
+  /**
+   * What is appended to an image's base name to name its output.
+   */
+  public String suffix() {
+    return suffix;
+  }
+
+  /**
+   * The extension of outputs in this mode written in the supplied image format.
+   */
+  public String extensionFor(ImageFormat format) {
+    return this == VECTOR ? GEOJSON_EXTENSION : format.extension();
+  }
+
+  /**
+   * Isolates the image and makes its output in this mode. The image is taken over, it is
+   * either released or becomes the output.
+   */
+  public ProcessedImage process(String name, ColorImage image, ColorIsolation colorIsolation) {
+    return process(name, image, colorIsolation, null);
+  }
+
+  /**
+   * Isolates the image, records the traits of its plants in the sink, if there is one, and
+   * makes its output in this mode. The image is taken over, it is either released or becomes
+   * the output.
+   */
+  public ProcessedImage process(String name, ColorImage image, ColorIsolation colorIsolation,
+                                MeasurementSink measurementSink) {
+    if(this == IMAGE && measurementSink == null) {
+      try {
+        colorIsolation.fastIsolation(image);
+      } catch(RuntimeException e) {
+        image.release();
+        throw e;
+      }
+      return new ProcessedImage(name, image, image.rectangle(), image.size());
+    }
+
+    Isolation isolation;
+    try {
+      isolation = colorIsolation.isolate(image);
+    } catch(RuntimeException e) {
+      image.release();
+      throw e;
+    }
+    try {
+      if(measurementSink != null) {
+        Measurements measurements = new Measurements(name, colorIsolation.trainingHash());
+        Morphology.measure(isolation, measurements);
+        ColorAnalysis.measure(image, isolation, measurements);
+        measurementSink.record(measurements);
+      }
+    } catch(IOException e) {
+      isolation.release();
+      image.release();
+      throw new UncheckedIOException(e);
+    } catch(RuntimeException e) {
+      isolation.release();
+      image.release();
+      throw e;
+    }
+
+    if(this == IMAGE) {
+      try {
+        long start = StageTimer.start();
+        image.maskWith(isolation.mask());
+        StageTimer.record(StageTimer.Stage.SHAPE_FILTER, start);
+      } catch(RuntimeException e) {
+        image.release();
+        throw e;
+      } finally {
+        isolation.release();
+      }
+      return new ProcessedImage(name, image, image.rectangle(), image.size());
+    }
+
+    if(this == MASK) {
+      // The mask is all the isolation needs to give, so it's handed over rather than copied
+      image.release();
+      isolation.releaseShapes();
+      return new ProcessedImage(name, isolation.mask(), isolation.mask().rectangle(), isolation.mask().size());
+    }
+
+    if(this == VECTOR) {
+      try {
+        byte[] geoJSON = isolation.shapes().toGeoJSON().getBytes(CHARSET);
+        return new ProcessedImage(name, geoJSON, image.rectangle(), image.size());
+      } finally {
+        isolation.release();
+        image.release();
+      }
+    }
+
+    try {
+      // An image with nothing kept still gets an output, a single black pixel
+      Rect region = isolation.isEmpty() ? new Rect(0, 0, 1, 1) : isolation.boundingBox();
+      long start = StageTimer.start();
+      ColorImage cropped = (ColorImage) image.crop(region);
+      GrayImage croppedMask = (GrayImage) isolation.mask().crop(region);
+      cropped.maskWith(croppedMask);
+      croppedMask.release();
+      StageTimer.record(StageTimer.Stage.SHAPE_FILTER, start);
+      return new ProcessedImage(name, cropped, region, image.size());
+    } finally {
+      isolation.release();
+      image.release();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
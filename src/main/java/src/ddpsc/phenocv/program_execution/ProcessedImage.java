@@ -0,0 +1,87 @@
+package src.ddpsc.phenocv.program_execution;
+
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import src.ddpsc.phenocv.computer_vision.Image;
+import src.ddpsc.phenocv.computer_vision.ImageFormat;
+import src.ddpsc.phenocv.computer_vision.Releasable;
+
+/**
+ * The output of isolating one image, as made by {@link OutputMode#process}, and where it lies
+ * in the image it was isolated from. The output is either an image, encoded in whichever
+ * format is asked for, or something already encoded that isn't an image, such as the
+ * plant's outlines.
+ *
+ * The output's pixels can be released once encoded; its name and region stay usable.
+ */
+public class ProcessedImage implements Releasable {
+  private static final String SEPARATOR = "\t";
+
+  private final String name;
+  private final Image output;
+  private final byte[] encodedOutput;
+  private final Rect region;
+  private final Size sourceSize;
+
+  public ProcessedImage(String name, Image output, Rect region, Size sourceSize) {
+    this.name = name;
+    this.output = output;
+    this.encodedOutput = null;
+    this.region = region;
+    this.sourceSize = sourceSize;
+  }
+
+  public ProcessedImage(String name, byte[] encodedOutput, Rect region, Size sourceSize) {
+    this.name = name;
+    this.output = null;
+    this.encodedOutput = encodedOutput;
+    this.region = region;
+    this.sourceSize = sourceSize;
+  }
+
+  /**
+   * Name of the image isolated, relative to the process directory.
+   */
+  public String name() {
+    return name;
+  }
+
+  /**
+   * The image to write, null if the output isn't an image.
+   */
+  public Image output() {
+    return output;
+  }
+
+  /**
+   * Region of the isolated image the output covers, all of it unless cropped.
+   */
+  public Rect region() {
+    return region.clone();
+  }
+
+  /**
+   * The output encoded in the supplied format, or as it already is if it isn't an image.
+   */
+  public byte[] encode(ImageFormat format) {
+    return output == null ? encodedOutput : output.encode(format);
+  }
+
+  /**
+   * The sidecar of a cropped output: a header line, then the output's offset and size in the
+   * isolated image and the isolated image's size, tab separated.
+   */
+  public String offsetTable() {
+    return "x" + SEPARATOR + "y" + SEPARATOR + "width" + SEPARATOR + "height"
+      + SEPARATOR + "imageWidth" + SEPARATOR + "imageHeight" + "\n"
+      + region.x + SEPARATOR + region.y + SEPARATOR + region.width + SEPARATOR + region.height
+      + SEPARATOR + (int) sourceSize.width + SEPARATOR + (int) sourceSize.height + "\n";
+  }
+
+  @Override
+  public void release() {
+    if(output != null) {
+      output.release();
+    }
+  }
+}
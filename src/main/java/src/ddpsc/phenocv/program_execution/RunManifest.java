@@ -0,0 +1,174 @@
+package src.ddpsc.phenocv.program_execution;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Record, kept in the output directory, of every image a run has finished with.
+ *
+ * Each line is one processed image: its input path, size and modification time, and the
+ * hash of the model it was isolated with, tab separated. A line is appended and flushed as
+ * soon as an image's output is written, so a run that dies part way still leaves a record of
+ * everything it finished. A later run skips an image when its input hasn't changed, it was
+ * isolated with the same model, and its output is still there.
+ *
+ * Later lines for the same input replace earlier ones. The file is compacted to one line per
+ * input each time it's opened.
+ */
+public class RunManifest {
+  public static final String FILENAME = "phenocv_manifest.tsv";
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String HEADER = "# phenocv run manifest 1: input\tsize\tmodified\tmodel";
+  private static final String SEPARATOR = "\t";
+
+  private final Path manifestPath;
+  private final Map<String, Entry> entries;
+  private BufferedWriter writer;
+
+  private RunManifest(Path manifestPath) {
+    this.manifestPath = manifestPath;
+    this.entries = new LinkedHashMap<String, Entry>();
+  }
+
+  /**
+   * Opens the manifest of an output directory, creating it if the directory has none.
+   */
+  public static RunManifest open(String outputDirectory) throws IOException {
+    return open(outputDirectory, 0, 1);
+  }
+
+  /**
+   * Opens the manifest of one shard of an output directory, so processes sharing the output
+   * directory never write to the same manifest. The whole directory, a shard count of 1, uses
+   * the plain manifest.
+   */
+  public static RunManifest open(String outputDirectory, int shardIndex, int shardCount) throws IOException {
+    String filename = shardCount == 1
+      ? FILENAME
+      : FILENAME.replace(".tsv", "_" + shardIndex + "_of_" + shardCount + ".tsv");
+    RunManifest manifest = new RunManifest(Paths.get(outputDirectory, filename));
+    if(Files.exists(manifest.manifestPath)) {
+      manifest.read();
+    }
+    manifest.compact();
+    manifest.writer = Files.newBufferedWriter(manifest.manifestPath, CHARSET,
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    return manifest;
+  }
+
+  /**
+   * Whether the input was already isolated with the model and written to the output, and
+   * hasn't changed since.
+   */
+  public synchronized boolean isProcessed(File input, String modelHash, Path output) throws IOException {
+    Entry entry = entries.get(keyOf(input));
+    return entry != null
+      && entry.equals(Entry.of(input, modelHash))
+      && Files.exists(output);
+  }
+
+  /**
+   * Records that the input was isolated with the model and its output written.
+   */
+  public synchronized void record(File input, String modelHash) throws IOException {
+    Entry entry = Entry.of(input, modelHash);
+    entries.put(keyOf(input), entry);
+    writer.write(entry.toLine(keyOf(input)));
+    writer.newLine();
+    writer.flush();
+  }
+
+  public synchronized void close() throws IOException {
+    if(writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+  private void read() throws IOException {
+    BufferedReader reader = Files.newBufferedReader(manifestPath, CHARSET);
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] fields = line.split(SEPARATOR);
+        if(line.startsWith("#") || fields.length != 4) {
+          continue;
+        }
+        try {
+          entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+        } catch(NumberFormatException e) {
+          // A line cut short by a crash, the image will be processed again
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  // Rewrites the manifest with one line per input, replacing it in one step
+  private void compact() throws IOException {
+    Path compacted = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+    BufferedWriter compactedWriter = Files.newBufferedWriter(compacted, CHARSET);
+    try {
+      compactedWriter.write(HEADER);
+      compactedWriter.newLine();
+      for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+        compactedWriter.write(entry.getValue().toLine(entry.getKey()));
+        compactedWriter.newLine();
+      }
+    } finally {
+      compactedWriter.close();
+    }
+    Files.move(compacted, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String keyOf(File input) {
+    return input.getAbsolutePath();
+  }
+
+  private static class Entry {
+    final long size;
+    final long modified;
+    final String modelHash;
+
+    Entry(long size, long modified, String modelHash) {
+      this.size = size;
+      this.modified = modified;
+      this.modelHash = modelHash;
+    }
+
+    static Entry of(File input, String modelHash) throws IOException {
+      Path path = input.toPath();
+      return new Entry(Files.size(path), Files.getLastModifiedTime(path).toMillis(), modelHash);
+    }
+
+    String toLine(String input) {
+      return input + SEPARATOR + size + SEPARATOR + modified + SEPARATOR + modelHash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if(!(other instanceof Entry)) {
+        return false;
+      }
+      Entry entry = (Entry) other;
+      return size == entry.size && modified == entry.modified && modelHash.equals(entry.modelHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (int) (size ^ (size >>> 32)) + (int) (modified ^ (modified >>> 32))) + modelHash.hashCode();
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package src.ddpsc.phenocv.program_execution;
+
+import src.ddpsc.phenocv.algorithms.ColorIsolation;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.computer_vision.Image;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.Tuple;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes images as a stream instead of loading the whole process directory up front.
+ *
+ * Reading, decoding, isolation, encoding and writing each run in their own threads and
+ * hand images to the next stage through bounded queues. A full queue blocks the stage feeding
+ * it, so the number of images alive at once depends on the thread count, not on the
+ * number of files being processed, and the first images are written while the rest are
+ * still being decoded.
+ *
+ * Files are read whole into memory through a FileChannel by their own threads, up to
+ * prefetchDepth files ahead of the decoders, and decoded from memory. Waiting on a slow
+ * filesystem then overlaps with isolating the images already read instead of stalling the
+ * decoders.
+ */
+public class StreamingImageProcessor {
+  private static final long LEASE_RETRY_MILLIS = 5000;
+
+  // Identity-compared markers telling a stage there is nothing more to take
+  private static final File END_OF_FILES = new File("");
+  private static final Tuple<File, byte[]> END_OF_READ = new Tuple<File, byte[]>(null, null);
+  private static final Tuple<String, ColorImage> END_OF_IMAGES = new Tuple<String, ColorImage>(null, null);
+  private static final ProcessedImage END_OF_PROCESSED = new ProcessedImage(null, (Image) null, null, null);
+  private static final Tuple<ProcessedImage, byte[]> END_OF_ENCODED = new Tuple<ProcessedImage, byte[]>(null, null);
+
+  private final ImagesIO imagesIO;
+  private final ColorIsolation colorIsolation;
+  private final int numThreads;
+  private final int queueDepth;
+  private final int prefetchDepth;
+  private final AtomicInteger writtenImages;
+
+  public StreamingImageProcessor(ImagesIO imagesIO, int numThreads) {
+    this(imagesIO, ImageProcessor.trainedColorIsolation(imagesIO, numThreads), numThreads);
+  }
+
+  public StreamingImageProcessor(ImagesIO imagesIO, ColorIsolation colorIsolation, int numThreads) {
+    this(imagesIO, colorIsolation, numThreads, 2 * numThreads);
+  }
+
+  public StreamingImageProcessor(ImagesIO imagesIO, ColorIsolation colorIsolation, int numThreads, int prefetchDepth) {
+    this.imagesIO = imagesIO;
+    this.colorIsolation = colorIsolation;
+    this.numThreads = numThreads;
+    this.queueDepth = 2 * numThreads;
+    this.prefetchDepth = prefetchDepth;
+    this.writtenImages = new AtomicInteger();
+  }
+
+  /**
+   * Decodes, isolates, encodes and writes every file in the process directory, or every one
+   * this process claims when ImagesIO has a work queue.
+   *
+   * @return number of images written to the output directory
+   */
+  public int processImages() throws Exception {
+    BlockingQueue<File> files = new ArrayBlockingQueue<File>(queueDepth);
+    BlockingQueue<Tuple<File, byte[]>> read = new ArrayBlockingQueue<Tuple<File, byte[]>>(prefetchDepth);
+    BlockingQueue<Tuple<String, ColorImage>> decoded = new ArrayBlockingQueue<Tuple<String, ColorImage>>(queueDepth);
+    BlockingQueue<ProcessedImage> isolated = new ArrayBlockingQueue<ProcessedImage>(queueDepth);
+    BlockingQueue<Tuple<ProcessedImage, byte[]>> encoded = new ArrayBlockingQueue<Tuple<ProcessedImage, byte[]>>(queueDepth);
+
+    ExecutorService readers = Executors.newFixedThreadPool(numThreads);
+    ExecutorService decoders = Executors.newFixedThreadPool(numThreads);
+    ExecutorService isolators = Executors.newFixedThreadPool(numThreads);
+    ExecutorService encoders = Executors.newFixedThreadPool(numThreads);
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    Stage.start(readers, numThreads, numThreads, new ReadStage(files, read));
+    Stage.start(decoders, numThreads, numThreads, new DecodeStage(read, decoded));
+    Stage.start(isolators, numThreads, numThreads, new IsolateStage(decoded, isolated));
+    Stage.start(encoders, numThreads, 1, new EncodeStage(isolated, encoded));
+    Stage.start(writer, 1, 0, new WriteStage(encoded));
+
+    // Images are only taken, and claimed when there is a work queue, as the decoders have room
+    ExecutorService[] pools = new ExecutorService[] {readers, decoders, isolators, encoders, writer};
+    try {
+      File file;
+      while((file = imagesIO.nextProcessFile(LEASE_RETRY_MILLIS)) != null) {
+        files.put(file);
+      }
+    } finally {
+      // Even when listing or claiming fails, the images already taken are finished and the
+      // pools' threads end
+      try {
+        for(int i = 0; i < numThreads; i++) {
+          files.put(END_OF_FILES);
+        }
+      } finally {
+        for(ExecutorService pool : pools) {
+          pool.shutdown();
+        }
+      }
+    }
+
+    try {
+      for(ExecutorService pool : pools) {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      }
+    }
+    catch(Exception e) { throw new Exception(e); }
+
+    return writtenImages.get();
+  }
+
+  /**
+   * One step of the pipeline. Every worker of a stage runs the same instance, taking
+   * from the input queue until it sees the input end marker. The last worker of a
+   * stage to finish passes one end marker per downstream worker along.
+   */
+  private static abstract class Stage<In, Out> implements Runnable {
+    private final BlockingQueue<In> input;
+    private final BlockingQueue<Out> output;
+    private final In inputEnd;
+    private final Out outputEnd;
+    private AtomicInteger liveWorkers;
+    private int downstreamWorkers;
+
+    Stage(BlockingQueue<In> input, In inputEnd, BlockingQueue<Out> output, Out outputEnd) {
+      this.input = input;
+      this.inputEnd = inputEnd;
+      this.output = output;
+      this.outputEnd = outputEnd;
+    }
+
+    static void start(ExecutorService pool, int workers, int downstreamWorkers, Stage<?, ?> stage) {
+      stage.liveWorkers = new AtomicInteger(workers);
+      stage.downstreamWorkers = downstreamWorkers;
+      for(int i = 0; i < workers; i++) {
+        pool.submit(stage);
+      }
+    }
+
+    abstract Out process(In item) throws Exception;
+
+    @Override
+    public void run() {
+      try {
+        In item = input.take();
+        while(item != inputEnd) {
+          try {
+            Out result = process(item);
+            if(result != null && output != null) {
+              output.put(result);
+            }
+          } catch(InterruptedException e) {
+            throw e;
+          } catch(Exception e) {
+            System.out.println("Unable to process image: " + e.getMessage());
+          } catch(Error e) {
+            // The pool would swallow it unseen; the worker ends and the finally passes the end along
+            System.out.println("Stopping a worker, unable to go on: " + e);
+            throw e;
+          }
+          item = input.take();
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        // However the worker ends, the last one passes the end along so the run can finish
+        if(liveWorkers.decrementAndGet() == 0 && output != null) {
+          passEndAlong();
+        }
+      }
+    }
+
+    private void passEndAlong() {
+      boolean interrupted = Thread.interrupted();
+      try {
+        for(int i = 0; i < downstreamWorkers; i++) {
+          while(true) {
+            try {
+              output.put(outputEnd);
+              break;
+            } catch(InterruptedException e) {
+              interrupted = true;
+            }
+          }
+        }
+      } finally {
+        if(interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  private class ReadStage extends Stage<File, Tuple<File, byte[]>> {
+    ReadStage(BlockingQueue<File> files, BlockingQueue<Tuple<File, byte[]>> read) {
+      super(files, END_OF_FILES, read, END_OF_READ);
+    }
+
+    @Override
+    Tuple<File, byte[]> process(File file) throws Exception {
+      long start = StageTimer.start();
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+        long size = channel.size();
+        if(size > Integer.MAX_VALUE) {
+          throw new Exception(file.getName() + " is too large to decode.");
+        }
+        ByteBuffer contents = ByteBuffer.allocate((int) size);
+        while(contents.hasRemaining() && channel.read(contents) >= 0) {
+          // Keep reading until the whole file is in
+        }
+        StageTimer.record(StageTimer.Stage.READ, start);
+        return new Tuple<File, byte[]>(file, contents.array());
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  private class DecodeStage extends Stage<Tuple<File, byte[]>, Tuple<String, ColorImage>> {
+    DecodeStage(BlockingQueue<Tuple<File, byte[]>> read, BlockingQueue<Tuple<String, ColorImage>> decoded) {
+      super(read, END_OF_READ, decoded, END_OF_IMAGES);
+    }
+
+    @Override
+    Tuple<String, ColorImage> process(Tuple<File, byte[]> readFile) throws Exception {
+      File file = readFile.item1;
+      long start = StageTimer.start();
+      ColorImage image = ColorImage.decode(readFile.item2);
+      StageTimer.record(StageTimer.Stage.DECODE, start);
+      if(image.numberPixels() == 0) {
+        image.release();
+        throw new Exception("Unable to decode " + file.getName());
+      }
+      return new Tuple<String, ColorImage>(imagesIO.nameOf(file), image);
+    }
+  }
+
+  private class IsolateStage extends Stage<Tuple<String, ColorImage>, ProcessedImage> {
+    IsolateStage(BlockingQueue<Tuple<String, ColorImage>> decoded, BlockingQueue<ProcessedImage> isolated) {
+      super(decoded, END_OF_IMAGES, isolated, END_OF_PROCESSED);
+    }
+
+    @Override
+    ProcessedImage process(Tuple<String, ColorImage> imageTuple) {
+      // The decoded image belongs to this pipeline alone, so it is isolated in place
+      return imagesIO.outputMode().process(imageTuple.item1, imageTuple.item2, colorIsolation,
+        imagesIO.measurementSink());
+    }
+  }
+
+  private class EncodeStage extends Stage<ProcessedImage, Tuple<ProcessedImage, byte[]>> {
+    EncodeStage(BlockingQueue<ProcessedImage> isolated, BlockingQueue<Tuple<ProcessedImage, byte[]>> encoded) {
+      super(isolated, END_OF_PROCESSED, encoded, END_OF_ENCODED);
+    }
+
+    @Override
+    Tuple<ProcessedImage, byte[]> process(ProcessedImage processedImage) {
+      try {
+        long start = StageTimer.start();
+        byte[] bytes = processedImage.encode(imagesIO.outputFormat());
+        StageTimer.record(StageTimer.Stage.ENCODE, start);
+        return new Tuple<ProcessedImage, byte[]>(processedImage, bytes);
+      } finally {
+        processedImage.release();
+      }
+    }
+  }
+
+  private class WriteStage extends Stage<Tuple<ProcessedImage, byte[]>, Void> {
+    WriteStage(BlockingQueue<Tuple<ProcessedImage, byte[]>> encoded) {
+      super(encoded, END_OF_ENCODED, null, null);
+    }
+
+    @Override
+    Void process(Tuple<ProcessedImage, byte[]> encodedImage) throws Exception {
+      imagesIO.writeProcessed(encodedImage.item1, encodedImage.item2);
+      writtenImages.incrementAndGet();
+      imagesIO.recordProcessed(encodedImage.item1.name());
+      return null;
+    }
+  }
+}
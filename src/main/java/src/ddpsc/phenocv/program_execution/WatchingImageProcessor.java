@@ -0,0 +1,304 @@
+package src.ddpsc.phenocv.program_execution;
+
+import src.ddpsc.phenocv.algorithms.ColorIsolation;
+import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.utility.StageTimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Isolates images as they land in the process directory or any directory beneath it, until
+ * stopped.
+ *
+ * The process directory and its subdirectories, except the output directory, are watched
+ * through a {@link WatchService}; directories made while watching are watched from then on. A new or changed file is
+ * only isolated once its size and modification time have stopped changing for settleMillis,
+ * so images still being copied in aren't decoded half written. Images are then decoded,
+ * isolated in place with the already trained ColorIsolation, encoded and written by a pool
+ * of numThreads threads. At most 2 * numThreads images are queued or in flight at once; the
+ * watcher waits for a slot before handing over another image.
+ *
+ * Images already in the process directory when watching starts are isolated first, once they
+ * too have settled. An image is never handed over again while it's still being isolated.
+ */
+public class WatchingImageProcessor {
+  private static final long POLL_MILLIS = 250;
+  private static final long DEFAULT_SETTLE_MILLIS = 1000;
+
+  private final ImagesIO imagesIO;
+  private final ColorIsolation colorIsolation;
+  private final int numThreads;
+  private final long settleMillis;
+  private final Semaphore inFlight;
+  private final AtomicInteger writtenImages;
+  private final CountDownLatch stopped;
+  private volatile boolean stopping;
+
+  // Files seen changing, by path, only touched by the watching thread
+  private final Map<Path, FileState> pending;
+  // Files handed over and not yet done with, touched by the watching thread and the pool
+  private final Set<Path> submitted;
+
+  public WatchingImageProcessor(ImagesIO imagesIO, ColorIsolation colorIsolation, int numThreads) {
+    this(imagesIO, colorIsolation, numThreads, DEFAULT_SETTLE_MILLIS);
+  }
+
+  public WatchingImageProcessor(ImagesIO imagesIO, ColorIsolation colorIsolation, int numThreads, long settleMillis) {
+    this.imagesIO = imagesIO;
+    this.colorIsolation = colorIsolation;
+    this.numThreads = numThreads;
+    this.settleMillis = settleMillis;
+    this.inFlight = new Semaphore(2 * numThreads);
+    this.writtenImages = new AtomicInteger();
+    this.stopped = new CountDownLatch(1);
+    this.pending = new HashMap<Path, FileState>();
+    this.submitted = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+  }
+
+  /**
+   * Isolates the images already in the process directory, then every image that lands in the
+   * process directory or beneath it, until {@link #stop()} is called. Images handed over before stopping
+   * are finished before returning.
+   *
+   * @return number of images written to the output directory
+   */
+  public int watch() throws Exception {
+    Path processDirectory = Paths.get(imagesIO.processDirectory).toAbsolutePath().normalize();
+    Path outputDirectory = Paths.get(imagesIO.outputDirectory).toAbsolutePath().normalize();
+    ExecutorService pool = null;
+    WatchService watchService = null;
+
+    try {
+      if(!Files.isDirectory(processDirectory)) {
+        throw new IOException(processDirectory + " is not a directory that can be watched.");
+      }
+      pool = Executors.newFixedThreadPool(numThreads);
+      watchService = processDirectory.getFileSystem().newWatchService();
+      watchTree(watchService, processDirectory, processDirectory, outputDirectory, false);
+      System.out.println("Watching " + processDirectory + " for new images.");
+
+      // Images already there may still be being copied in, they settle like any other
+      File file;
+      while((file = imagesIO.nextProcessFile(0)) != null) {
+        noticeChange(file.toPath(), outputDirectory);
+      }
+
+      while(!stopping) {
+        WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if(key != null) {
+          Path directory = (Path) key.watchable();
+          for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == OVERFLOW) {
+              watchTree(watchService, processDirectory, processDirectory, outputDirectory, true);
+              continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if(event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+              // Images may have been moved or copied in before the directory was registered
+              watchTree(watchService, path, processDirectory, outputDirectory, true);
+            } else {
+              noticeChange(path, outputDirectory);
+            }
+          }
+          // A subdirectory removed while watching just stops being watched
+          if(!key.reset() && directory.equals(processDirectory)) {
+            throw new IOException("Process directory " + processDirectory + " is no longer accessible.");
+          }
+        }
+        submitSettled(pool);
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // Counted down however watching ends, so stop() never waits on a watch that's over
+      try {
+        if(watchService != null) {
+          watchService.close();
+        }
+        if(pool != null) {
+          pool.shutdown();
+          pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+      } finally {
+        stopped.countDown();
+      }
+    }
+
+    return writtenImages.get();
+  }
+
+  /**
+   * Stops watching and waits for the images already handed over to be written. Safe to
+   * call from a shutdown hook.
+   */
+  public void stop() throws InterruptedException {
+    stopping = true;
+    stopped.await();
+  }
+
+  private void noticeChange(Path path, Path outputDirectory) {
+    File file = path.toFile();
+    if(!ImagesIO.isImageFile(file) || !imagesIO.isInShard(file) || path.getParent().equals(outputDirectory)) {
+      return;
+    }
+    FileState state = pending.get(path);
+    if(state == null) {
+      pending.put(path, FileState.of(file));
+    } else {
+      state.refresh(file);
+    }
+  }
+
+  /**
+   * Registers the directory and every directory beneath it, except the output directory, with
+   * the watch service. Registering a directory again is harmless.
+   *
+   * @param noticeFiles whether to notice the unprocessed images found, for directories that
+   *                    may have been written to before they were registered, or when events
+   *                    were dropped
+   */
+  private void watchTree(final WatchService watchService, final Path directory, final Path processDirectory,
+                         final Path outputDirectory, final boolean noticeFiles) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+        // Outputs written to a directory inside the process directory aren't images to process
+        if(dir.equals(outputDirectory) && !dir.equals(processDirectory)) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+        if(noticeFiles && !pending.containsKey(path) && !submitted.contains(path)
+          && ImagesIO.isImageFile(path.toFile()) && !imagesIO.isProcessed(path.toFile())) {
+          noticeChange(path, outputDirectory);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path path, IOException e) {
+        // Removed since it was listed, or unreadable, either way there's nothing to watch
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void submitSettled(ExecutorService pool) throws InterruptedException, IOException {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<Path, FileState>> pendingFiles = pending.entrySet().iterator();
+    while(pendingFiles.hasNext()) {
+      Map.Entry<Path, FileState> pendingFile = pendingFiles.next();
+      File file = pendingFile.getKey().toFile();
+      FileState state = pendingFile.getValue();
+      if(!file.exists()) {
+        pendingFiles.remove();
+      } else if(state.refresh(file)) {
+        // Still being written
+      } else if(now - state.lastChangeMillis >= settleMillis && state.size > 0) {
+        pendingFiles.remove();
+        // Changes seen while it's being isolated don't hand it over twice
+        if(!submitted.contains(pendingFile.getKey()) && !imagesIO.isProcessed(file)) {
+          submit(pool, file);
+        }
+      }
+    }
+  }
+
+  private void submit(ExecutorService pool, final File file) throws InterruptedException {
+    inFlight.acquire();
+    submitted.add(file.toPath());
+    try {
+      pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            process(file);
+          } catch(Exception e) {
+            System.out.println("Unable to process image: " + e.getMessage());
+          } finally {
+            submitted.remove(file.toPath());
+            inFlight.release();
+          }
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      submitted.remove(file.toPath());
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  private void process(File file) throws Exception {
+    long started = System.nanoTime();
+
+    long start = StageTimer.start();
+    ColorImage image = new ColorImage(file.getPath());
+    StageTimer.record(StageTimer.Stage.DECODE, start);
+    if(image.numberPixels() == 0) {
+      image.release();
+      throw new Exception("Unable to decode " + file.getName());
+    }
+    // The output mode takes the image over, releasing it or making it the output
+    ProcessedImage processedImage = imagesIO.outputMode().process(imagesIO.nameOf(file), image, colorIsolation,
+      imagesIO.measurementSink());
+    try {
+      start = StageTimer.start();
+      byte[] bytes = processedImage.encode(imagesIO.outputFormat());
+      StageTimer.record(StageTimer.Stage.ENCODE, start);
+
+      imagesIO.writeProcessed(processedImage, bytes);
+    } finally {
+      processedImage.release();
+    }
+    imagesIO.recordProcessed(file);
+    writtenImages.incrementAndGet();
+
+    long milliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    System.out.println("Isolated " + file.getName() + " in " + milliseconds + " ms");
+  }
+
+  private static class FileState {
+    long size;
+    long modified;
+    long lastChangeMillis;
+
+    static FileState of(File file) {
+      FileState state = new FileState();
+      state.size = file.length();
+      state.modified = file.lastModified();
+      state.lastChangeMillis = System.currentTimeMillis();
+      return state;
+    }
+
+    /**
+     * Updates the size and modification time, returns whether either changed.
+     */
+    boolean refresh(File file) {
+      long currentSize = file.length();
+      long currentModified = file.lastModified();
+      if(currentSize == size && currentModified == modified) {
+        return false;
+      }
+      size = currentSize;
+      modified = currentModified;
+      lastChangeMillis = System.currentTimeMillis();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package src.ddpsc.phenocv.program_execution;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.UUID;
+
+/**
+ * Lets any number of phenocv processes, on any number of machines, share out the images of
+ * one batch through a directory they can all write to, such as one on NFS.
+ *
+ * A process claims an image by creating its lease file in the queue directory, which only
+ * one process can do, and marks it done by creating its completion marker once its output is
+ * written. A lease runs out after leaseMillis; an image whose lease ran out without it being
+ * done, because its process died, is claimed again by the next process to look at it. After
+ * MAX_ATTEMPTS claims without finishing it is marked failed instead, so one image that kills
+ * its process can't stall the batch. Done and failed images are never claimed again; use a
+ * new queue directory for a new batch.
+ *
+ * Lease files are created by hard linking a fully written temporary file to the lease name,
+ * which is atomic and fails if the name exists, on NFS as on a local filesystem. An expired
+ * lease is taken over by first hard linking the new lease to a reclaim marker named after its
+ * attempt, which only one process can do per attempt, then renaming it over the old lease. The
+ * lease file never goes missing while it's taken over, so no process can claim the image
+ * afresh and start its attempts over; the reclaim markers stay behind in the queue directory.
+ *
+ * Lease expiry compares the clock of the claiming machine to that of the checking one, so the
+ * machines' clocks must agree to well within leaseMillis. Leases aren't renewed while their
+ * image is being isolated, so leaseMillis must cover the slowest image: one whose lease runs
+ * out while it's still being isolated is isolated again by another process, which writes the
+ * same output twice and counts as another attempt.
+ */
+public class WorkQueue {
+  public static final int MAX_ATTEMPTS = 3;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String SEPARATOR = "\t";
+  private static final String LEASE_EXTENSION = ".lease";
+  private static final String RECLAIM_EXTENSION = ".reclaim";
+  private static final String DONE_EXTENSION = ".done";
+  private static final String FAILED_EXTENSION = ".failed";
+
+  /**
+   * What came of trying to claim an image.
+   */
+  public enum Claim {
+    /** The image is this process's to isolate. */
+    CLAIMED,
+    /** Another process holds an unexpired lease on the image. */
+    LEASED,
+    /** The image is done or failed, there is nothing left to do with it. */
+    FINISHED
+  }
+
+  private final Path queueDirectory;
+  private final long leaseMillis;
+  private final String owner;
+
+  public WorkQueue(String queueDirectory, long leaseMillis) throws IOException {
+    this.queueDirectory = Paths.get(queueDirectory);
+    this.leaseMillis = leaseMillis;
+    this.owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+    Files.createDirectories(this.queueDirectory);
+  }
+
+  /**
+   * Tries to claim the image of the supplied name for this process.
+   */
+  public Claim claim(String imageName) throws IOException {
+    String key = keyOf(imageName);
+    if(isFinished(key)) {
+      return Claim.FINISHED;
+    }
+    if(createLease(key, 1)) {
+      return Claim.CLAIMED;
+    }
+
+    Path lease = leasePath(key);
+    Lease current = Lease.read(lease);
+    if(current == null) {
+      // Completed and removed since
+      return isFinished(key) ? Claim.FINISHED : Claim.LEASED;
+    }
+    if(current.expiresMillis > System.currentTimeMillis()) {
+      return Claim.LEASED;
+    }
+
+    // Expired, only the process that makes the reclaim marker for the next attempt reclaims it
+    int attempt = current.attempt;
+    while(true) {
+      if(attempt >= MAX_ATTEMPTS) {
+        createMarker(key, FAILED_EXTENSION);
+        System.out.println("Giving up on " + imageName + " after " + attempt + " attempts.");
+        return Claim.FINISHED;
+      }
+      if(reclaimLease(key, attempt + 1)) {
+        break;
+      }
+      // Its reclaimer died before putting its lease in place once that too ran out, the attempt is used up
+      Lease reclaimed = Lease.read(reclaimPath(key, attempt + 1));
+      if(reclaimed == null || reclaimed.expiresMillis > System.currentTimeMillis() || !current.equals(Lease.read(lease))) {
+        return Claim.LEASED;
+      }
+      attempt++;
+    }
+    if(isFinished(key)) {
+      // Completed by its previous owner just as its lease ran out
+      Files.deleteIfExists(lease);
+      return Claim.FINISHED;
+    }
+    System.out.println("Reclaiming " + imageName + " from " + current.owner + ".");
+    return Claim.CLAIMED;
+  }
+
+  /**
+   * Marks the image of the supplied name as done and gives up its lease.
+   */
+  public void complete(String imageName) throws IOException {
+    String key = keyOf(imageName);
+    createMarker(key, DONE_EXTENSION);
+    Files.deleteIfExists(leasePath(key));
+  }
+
+  private boolean isFinished(String key) {
+    return Files.exists(queueDirectory.resolve(key + DONE_EXTENSION))
+      || Files.exists(queueDirectory.resolve(key + FAILED_EXTENSION));
+  }
+
+  private boolean createLease(String key, int attempt) throws IOException {
+    Lease lease = new Lease(owner, attempt, System.currentTimeMillis() + leaseMillis);
+    Path written = queueDirectory.resolve(key + LEASE_EXTENSION + "." + owner + ".tmp");
+    Files.write(written, lease.toLine().getBytes(CHARSET));
+    try {
+      Files.createLink(leasePath(key), written);
+      return true;
+    } catch(FileAlreadyExistsException e) {
+      return false;
+    } finally {
+      Files.deleteIfExists(written);
+    }
+  }
+
+  // Replaces the lease in place, carrying the attempt count on, if no one else has reclaimed this attempt
+  private boolean reclaimLease(String key, int attempt) throws IOException {
+    Lease lease = new Lease(owner, attempt, System.currentTimeMillis() + leaseMillis);
+    Path written = queueDirectory.resolve(key + LEASE_EXTENSION + "." + owner + ".tmp");
+    Files.write(written, lease.toLine().getBytes(CHARSET));
+    try {
+      Files.createLink(reclaimPath(key, attempt), written);
+    } catch(FileAlreadyExistsException e) {
+      Files.deleteIfExists(written);
+      return false;
+    }
+    Files.move(written, leasePath(key), StandardCopyOption.ATOMIC_MOVE);
+    return true;
+  }
+
+  private void createMarker(String key, String extension) throws IOException {
+    try {
+      Files.createFile(queueDirectory.resolve(key + extension));
+    } catch(FileAlreadyExistsException e) {
+      // Already marked, by this process or one that isolated it after its lease ran out
+    }
+  }
+
+  private Path leasePath(String key) {
+    return queueDirectory.resolve(key + LEASE_EXTENSION);
+  }
+
+  private Path reclaimPath(String key, int attempt) {
+    return queueDirectory.resolve(key + RECLAIM_EXTENSION + "." + attempt);
+  }
+
+  // Images are written to an output named after their name without extension, so that's
+  // what's leased, in the same subdirectory of the queue as the image is of the process directory
+  private String keyOf(String imageName) throws IOException {
+    String key = FilenameUtils.removeExtension(imageName);
+    Path keyDirectory = queueDirectory.resolve(key).getParent();
+    if(!keyDirectory.equals(queueDirectory)) {
+      Files.createDirectories(keyDirectory);
+    }
+    return key;
+  }
+
+  private static class Lease {
+    final String owner;
+    final int attempt;
+    final long expiresMillis;
+
+    Lease(String owner, int attempt, long expiresMillis) {
+      this.owner = owner;
+      this.attempt = attempt;
+      this.expiresMillis = expiresMillis;
+    }
+
+    /**
+     * Reads a lease file, null if it doesn't exist. A lease that can't be parsed has expired.
+     */
+    static Lease read(Path path) throws IOException {
+      String line;
+      try {
+        line = new String(Files.readAllBytes(path), CHARSET).trim();
+      } catch(NoSuchFileException e) {
+        return null;
+      }
+      String[] fields = line.split(SEPARATOR);
+      try {
+        return new Lease(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+      } catch(RuntimeException e) {
+        return new Lease(line, 1, 0);
+      }
+    }
+
+    String toLine() {
+      return owner + SEPARATOR + attempt + SEPARATOR + expiresMillis;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if(!(other instanceof Lease)) {
+        return false;
+      }
+      Lease lease = (Lease) other;
+      return owner.equals(lease.owner) && attempt == lease.attempt && expiresMillis == lease.expiresMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * owner.hashCode() + attempt) + (int) (expiresMillis ^ (expiresMillis >>> 32));
+    }
+  }
+}
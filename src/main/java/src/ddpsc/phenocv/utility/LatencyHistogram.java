@@ -0,0 +1,166 @@
+package src.ddpsc.phenocv.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of nanosecond durations written by one thread and readable by any thread.
+ *
+ * Durations are counted into buckets whose width grows with the duration: every power of two
+ * is split into 16 equal buckets, so any duration is known to within 1/16th (about 6%) of its
+ * value while the whole range of a long fits in under a thousand buckets.
+ *
+ * Only the thread that owns the histogram may record into it. Because there is only ever one
+ * writer, recording needs no locks or compare-and-swap loops, just ordered writes that other
+ * threads can read while the owner keeps recording. Readers see every duration recorded
+ * before they read, and possibly some recorded while they read.
+ *
+ * @see StageTimer
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUMBER_BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong total;
+    private final AtomicLong max;
+
+
+    /// ======================================================================
+    /// Constructors
+    /// ======================================================================
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(NUMBER_BUCKETS);
+        count = new AtomicLong();
+        total = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+
+    /// ======================================================================
+    /// Recording
+    /// ======================================================================
+
+    /**
+     * Records a duration. Must only be called by the thread that owns this histogram.
+     *
+     * Negative durations are recorded as zero.
+     *
+     * @param nanoseconds       duration to record
+     */
+    public void record(long nanoseconds) {
+        if (nanoseconds < 0)
+            nanoseconds = 0;
+
+        int bucket = bucketOf(nanoseconds);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        total.lazySet(total.get() + nanoseconds);
+        if (nanoseconds > max.get())
+            max.lazySet(nanoseconds);
+        count.lazySet(count.get() + 1);
+    }
+
+    /**
+     * Adds every duration recorded in the supplied histogram to this one.
+     *
+     * Only use on a histogram no thread records into, such as a merged copy.
+     *
+     * @param other     histogram to add to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int bucket = 0; bucket < NUMBER_BUCKETS; bucket++) {
+            long bucketCount = other.counts.get(bucket);
+            if (bucketCount != 0)
+                counts.set(bucket, counts.get(bucket) + bucketCount);
+        }
+
+        count.set(count.get() + other.count.get());
+        total.set(total.get() + other.total.get());
+        max.set(Math.max(max.get(), other.max.get()));
+    }
+
+
+    /// ======================================================================
+    /// Properties
+    /// ======================================================================
+
+    /**
+     * Returns the number of durations recorded.
+     *
+     * @return      number of durations recorded
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of every duration recorded, in nanoseconds.
+     *
+     * @return      total duration recorded
+     */
+    public long total() {
+        return total.get();
+    }
+
+    /**
+     * Returns the longest duration recorded, in nanoseconds.
+     *
+     * @return      longest duration recorded
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the duration that the supplied fraction of the recorded durations are no longer
+     * than, in nanoseconds, to within the width of its bucket.
+     *
+     * @param quantile      fraction of durations, between 0 and 1, 0.99 for the 99th percentile
+     * @return              duration at the quantile, 0 if nothing was recorded
+     */
+    public long valueAt(double quantile) {
+        long numberRecorded = 0;
+        for (int bucket = 0; bucket < NUMBER_BUCKETS; bucket++)
+            numberRecorded += counts.get(bucket);
+
+        if (numberRecorded == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * numberRecorded));
+        long seen = 0;
+        for (int bucket = 0; bucket < NUMBER_BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+                return Math.min(middleOf(bucket), max());
+        }
+
+        return max();
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+
+    // Values below 2 * SUB_BUCKETS get a bucket each, larger values keep their top
+    // SUB_BUCKET_BITS + 1 bits and are shifted into the bucket range of their power of two
+    private static int bucketOf(long value) {
+        int topBit = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift = Math.max(0, topBit - SUB_BUCKET_BITS);
+
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long middleOf(int bucket) {
+        int shift = Math.max(0, (bucket >>> SUB_BUCKET_BITS) - 1);
+        long mantissa = bucket - (shift << SUB_BUCKET_BITS);
+
+        long lowest = mantissa << shift;
+        long width = 1L << shift;
+
+        return lowest + width / 2;
+    }
+}
@@ -0,0 +1,80 @@
+package src.ddpsc.phenocv.utility;
+
+import org.opencv.core.Mat;
+import src.ddpsc.phenocv.computer_vision.Releasable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Releases every native object added to it when it's closed, so temporaries are freed
+ * deterministically rather than left to OpenCV's finalizers.
+ *
+ * Meant for try-with-resources:
+ *      try (ReleaseScope scope = new ReleaseScope()) {
+ *          Mat hierarchy = scope.add(new Mat());
+ *          GrayImage mask = scope.add(GrayImage.maskShowAll(size));
+ *          ...
+ *      }
+ *
+ * Objects are released in the reverse of the order they were added, even if the block throws.
+ * Anything that outlives the block, such as a result, mustn't be added, or has to be taken back
+ * out with {@link ReleaseScope#keep(Object)}. A scope is used by one thread at a time.
+ */
+public final class ReleaseScope implements AutoCloseable {
+
+    private final List<Object> added = new ArrayList<Object>();
+
+    /**
+     * Adds a matrix to be released when this scope closes.
+     *
+     * @param matrix    matrix to release
+     * @return          the same matrix
+     */
+    public <T extends Mat> T add(T matrix) {
+        added.add(matrix);
+        return matrix;
+    }
+
+    /**
+     * Adds a releasable object to be released when this scope closes.
+     *
+     * @param releasable    object to release
+     * @return              the same object
+     */
+    public <T extends Releasable> T add(T releasable) {
+        added.add(releasable);
+        return releasable;
+    }
+
+    /**
+     * Takes an object back out of this scope, so it isn't released when the scope closes.
+     *
+     * @param kept      object added to this scope
+     * @return          the same object, now the caller's to release
+     */
+    public <T> T keep(T kept) {
+        for (int i = added.size() - 1; i >= 0; i--)
+            if (added.get(i) == kept) {
+                added.remove(i);
+                break;
+            }
+
+        return kept;
+    }
+
+    /**
+     * Releases every object added, last added first.
+     */
+    @Override
+    public void close() {
+        for (int i = added.size() - 1; i >= 0; i--) {
+            Object releaseThis = added.get(i);
+            if (releaseThis instanceof Mat)
+                ((Mat) releaseThis).release();
+            else
+                ((Releasable) releaseThis).release();
+        }
+        added.clear();
+    }
+}
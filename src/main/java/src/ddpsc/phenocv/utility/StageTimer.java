@@ -0,0 +1,184 @@
+package src.ddpsc.phenocv.utility;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records how long each stage of processing an image takes, from any number of threads.
+ *
+ * Time a stage by taking a start time and recording the stage against it once it's done:
+ *
+ *      long start = StageTimer.start();
+ *      ...
+ *      StageTimer.record(Stage.DECODE, start);
+ *
+ * Every thread records into its own {@link LatencyHistogram} per stage, so threads never
+ * contend with each other while recording. {@link StageTimer#readout()} merges the histograms
+ * of every thread that has recorded since the last {@link StageTimer#reset()}, and may be
+ * called at any time, including while other threads are still recording.
+ *
+ * Durations are measured with {@link System#nanoTime()}.
+ */
+public final class StageTimer {
+
+    /**
+     * The stages of processing an image that are timed.
+     */
+    public enum Stage {
+        READ("read"),
+        DECODE("decode"),
+        COLOR_CONVERSION("color conversion"),
+        BACK_PROJECTION("back-projection"),
+        MEDIAN_FILTER("median filter"),
+        CONTOUR_EXTRACTION("contour extraction"),
+        SHAPE_FILTER("shape filter"),
+        MEASUREMENT("measurement"),
+        COLOR_ANALYSIS("color analysis"),
+        ENCODE("encode"),
+        WRITE("write");
+
+        private final String description;
+
+        Stage(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1e6;
+    private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+    private static volatile Run currentRun = new Run();
+
+    private static final ThreadLocal<ThreadHistograms> threadHistograms = new ThreadLocal<ThreadHistograms>();
+
+    private StageTimer() {}
+
+
+    /// ======================================================================
+    /// Recording
+    /// ======================================================================
+
+    /**
+     * Returns the current time, to pass to {@link StageTimer#record(Stage, long)} once the
+     * stage is done.
+     *
+     * @return      current time in nanoseconds
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records that the supplied stage took from the supplied start time until now.
+     *
+     * @param stage             stage that was timed
+     * @param startNanoseconds  time the stage started, from {@link StageTimer#start()}
+     */
+    public static void record(Stage stage, long startNanoseconds) {
+        long duration = System.nanoTime() - startNanoseconds;
+        histogramsOfThisThread().histograms[stage.ordinal()].record(duration);
+    }
+
+    /**
+     * Forgets everything recorded so far and starts timing a new run.
+     *
+     * Throughput is measured from the start of the run.
+     */
+    public static void reset() {
+        currentRun = new Run();
+    }
+
+
+    /// ======================================================================
+    /// Reporting
+    /// ======================================================================
+
+    /**
+     * Returns the durations recorded for the supplied stage by every thread in this run.
+     *
+     * @param stage     stage to get the durations of
+     * @return          merged copy of every thread's durations for the stage
+     */
+    public static LatencyHistogram histogramOf(Stage stage) {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (ThreadHistograms thread : currentRun.threads)
+            merged.add(thread.histograms[stage.ordinal()]);
+
+        return merged;
+    }
+
+    /**
+     * Returns a table of the 50th, 90th and 99th percentile and longest duration of every
+     * stage recorded in this run, in milliseconds, and how many times per second each stage
+     * was completed since the run started.
+     *
+     * @return      readout of the stage timings
+     */
+    public static String readout() {
+        Run run = currentRun;
+        double elapsedSeconds = (System.nanoTime() - run.startNanoseconds) / NANOSECONDS_PER_SECOND;
+
+        StringBuilder readout = new StringBuilder();
+        readout.append("Stage Timings (ms) over ")
+                .append(String.format("%.1f", elapsedSeconds)).append(" s\n")
+                .append(String.format("%-20s %8s %10s %10s %10s %10s %10s%n",
+                        "stage", "count", "p50", "p90", "p99", "max", "per second"));
+
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histogramOf(stage);
+            if (histogram.count() == 0)
+                continue;
+
+            readout.append(String.format("%-20s %8d %10.3f %10.3f %10.3f %10.3f %10.2f%n",
+                    stage,
+                    histogram.count(),
+                    histogram.valueAt(0.50) / NANOSECONDS_PER_MILLISECOND,
+                    histogram.valueAt(0.90) / NANOSECONDS_PER_MILLISECOND,
+                    histogram.valueAt(0.99) / NANOSECONDS_PER_MILLISECOND,
+                    histogram.max() / NANOSECONDS_PER_MILLISECOND,
+                    elapsedSeconds > 0 ? histogram.count() / elapsedSeconds : 0));
+        }
+
+        return readout.toString();
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+    private static ThreadHistograms histogramsOfThisThread() {
+        Run run = currentRun;
+        ThreadHistograms histograms = threadHistograms.get();
+
+        // First recording of this thread in this run
+        if (histograms == null || histograms.run != run) {
+            histograms = new ThreadHistograms(run);
+            threadHistograms.set(histograms);
+            run.threads.add(histograms);
+        }
+
+        return histograms;
+    }
+
+    private static final class Run {
+        final long startNanoseconds = System.nanoTime();
+        final List<ThreadHistograms> threads = new CopyOnWriteArrayList<ThreadHistograms>();
+    }
+
+    private static final class ThreadHistograms {
+        final Run run;
+        final LatencyHistogram histograms[];
+
+        ThreadHistograms(Run run) {
+            this.run = run;
+            histograms = new LatencyHistogram[Stage.values().length];
+            for (int i = 0; i < histograms.length; i++)
+                histograms[i] = new LatencyHistogram();
+        }
+    }
+}
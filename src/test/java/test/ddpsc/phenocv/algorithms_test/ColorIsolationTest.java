@@ -1,17 +1,20 @@
 package test.ddpsc.phenocv.algorithms_test;
 
+import org.junit.Assert;
 import org.junit.Test;
 import src.ddpsc.phenocv.algorithms.ColorIsolation;
 import src.ddpsc.phenocv.computer_vision.*;
 import src.ddpsc.phenocv.utility.Lists;
 import src.ddpsc.phenocv.utility.OpenCV;
-import src.ddpsc.phenocv.utility.PerformanceTimer;
+import src.ddpsc.phenocv.utility.StageTimer;
 import src.ddpsc.phenocv.utility.Tuple;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.hamcrest.CoreMatchers.*;
+
 /**
  * @author cjmcentee
  */
@@ -73,9 +76,7 @@ public class ColorIsolationTest {
                 ColorImage image = testImages.get(i);
                 ColorImage copy = (ColorImage) image.copy();
 
-                PerformanceTimer.start();
                 colorIsolation.fastIsolation(copy);
-                PerformanceTimer.end();
 
                 String imageSaveName =
                         RESULTS_ROOT + histogramPartition.toString() + "_"
@@ -87,7 +88,33 @@ public class ColorIsolationTest {
             colorIsolation.release();
         }
 
-        System.out.println(" ++++++ Color Isolation Algorithm Test ++++++\n" + PerformanceTimer.readout());
+        System.out.println(" ++++++ Color Isolation Algorithm Test ++++++\n" + StageTimer.readout());
+    }
+
+    @Test
+    public void TestParallelTrainingMatchesSerial() {
+        List<Tuple<String, String>> trainingFiles = getExistingTrainingPairs();
+        HistogramPartition histogramPartition = new HistogramPartition(ColorSpace.HSV, 100);
+
+        ColorIsolation serial = new ColorIsolation(histogramPartition);
+        serial.trainByFiles(trainingFiles, 1);
+        ColorIsolation parallel = new ColorIsolation(histogramPartition);
+        parallel.trainByFiles(trainingFiles, 4);
+
+        Assert.assertThat("Training hash must not depend on the number of threads.",
+                parallel.trainingHash(), equalTo(serial.trainingHash()));
+
+        ColorImage image = new ColorImage(TEST_ROOT + TEST_PREFIX + TEST_SIZE_INIT + TEST_SUFFIX);
+        ColorImage serialResult = (ColorImage) image.copy();
+        ColorImage parallelResult = (ColorImage) image.copy();
+        serial.fastIsolation(serialResult);
+        parallel.fastIsolation(parallelResult);
+
+        Assert.assertArrayEquals("Parallel training must isolate the same pixels as serial training.",
+                serialResult.pixels(), parallelResult.pixels());
+
+        serial.release();
+        parallel.release();
     }
 
     private static List<Tuple<String, String>> getTrainingPairs() {
@@ -102,6 +129,16 @@ public class ColorIsolationTest {
         return trainingPairs;
     }
 
+    private static List<Tuple<String, String>> getExistingTrainingPairs() {
+
+        List<Tuple<String, String>> existingPairs = new ArrayList<Tuple<String, String>>(TRAINING_SIZE);
+        for (Tuple<String, String> pair : getTrainingPairs())
+            if (new File(pair.item1).exists() && new File(pair.item2).exists())
+                existingPairs.add(pair);
+
+        return existingPairs;
+    }
+
     private static List<ColorImage> getTestImages() {
 
         List<ColorImage> images = new ArrayList<ColorImage>(TEST_SIZE + 1);
@@ -5,9 +5,16 @@ import org.junit.Test;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.computer_vision.ColorSpace;
+import src.ddpsc.phenocv.computer_vision.ConversionCache;
 import src.ddpsc.phenocv.computer_vision.GrayImage;
 import src.ddpsc.phenocv.utility.OpenCV;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+
 import static org.hamcrest.CoreMatchers.*;
 
 /**
@@ -39,6 +46,19 @@ public class ColorImageTest {
                 TestFiles.TINY_PIXELS_BGR, gradient.pixels());
     }
 
+    @Test
+    public void TestDecode() throws IOException {
+        byte encoded[] = Files.readAllBytes(Paths.get(TestFiles.TINY_TEST));
+        ColorImage gradient = ColorImage.decode(encoded);
+
+        Assert.assertArrayEquals("Decoding file contents must load the same as the file.",
+                TestFiles.TINY_PIXELS_BGR, gradient.pixels());
+
+        ColorImage garbage = ColorImage.decode(new byte[] {1, 2, 3});
+        Assert.assertThat("Contents that can't be decoded must give an empty image.",
+                0, equalTo(garbage.numberPixels()));
+    }
+
     @Test
     public void TestCopy() {
         ColorImage gradient = new ColorImage(TestFiles.TINY_TEST);
@@ -60,6 +80,11 @@ public class ColorImageTest {
 
         Assert.assertArrayEquals("cvAsGray must return a matrix with the same pixel values.",
                 TestFiles.TINY_PIXELS_BGR, imageMatrixPixels);
+
+        imageMatrix.release();
+        Assert.assertThat("cvAsBGRMatrix must return a copy, releasing it must leave the image.",
+                image.numberPixels(), is(TestFiles.TINY_PIXELS_BGR.length / 3));
+        image.release();
     }
 
     @Test
@@ -80,5 +105,91 @@ public class ColorImageTest {
                 CvType.CV_8UC1, is(grayImage.valueType()));
     }
 
+    @Test
+    public void TestBorrowConversion() {
+        ColorImage image = new ColorImage(TestFiles.TINY_TEST);
+
+        Mat hsv = image.borrowConversion(ColorSpace.HSV);
+        image.returnConversion(ColorSpace.HSV);
+        Assert.assertThat("Borrowing a returned conversion again must reuse it.",
+                image.borrowConversion(ColorSpace.HSV), sameInstance(hsv));
+
+        try {
+            ConversionCache.setBudget(0);
+            Assert.assertThat("A borrowed conversion must not be released to stay within budget.",
+                    image.borrowConversion(ColorSpace.HSV), sameInstance(hsv));
+            image.returnConversion(ColorSpace.HSV);
+            image.returnConversion(ColorSpace.HSV);
+
+            Assert.assertThat("A returned conversion must be released to stay within budget.",
+                    image.borrowConversion(ColorSpace.HSV), not(sameInstance(hsv)));
+            image.returnConversion(ColorSpace.HSV);
+        }
+        finally {
+            ConversionCache.setBudget(ConversionCache.DEFAULT_BUDGET_BYTES);
+        }
+
+        Mat bgr = image.cvAsBGRMatrix();
+        Assert.assertThat("The BGR conversion must be the image itself.",
+                image.borrowConversion(ColorSpace.BGR).total(), is(bgr.total()));
+        bgr.release();
+        image.release();
+    }
+
+    @Test
+    public void TestPinnedConversionLeavesCache() {
+        ColorImage image = new ColorImage(TestFiles.TINY_TEST);
+        long cachedBefore = ConversionCache.cachedBytes();
+
+        Mat hsv = image.cvAsHSVMatrix();
+        Assert.assertThat("A conversion kept for the image's life must be held by the image alone.",
+                ConversionCache.cachedBytes(), is(cachedBefore));
+        Assert.assertThat("Borrowing a kept conversion must reuse it.",
+                image.borrowConversion(ColorSpace.HSV), sameInstance(hsv));
+        image.returnConversion(ColorSpace.HSV);
+
+        image.release();
+    }
 
+    @Test
+    public void TestBorrowConversionConcurrently() throws Exception {
+        final ColorImage image = new ColorImage(TestFiles.GRADIENT);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Mat[] borrowed = new Mat[threads];
+        long cachedBefore = ConversionCache.cachedBytes();
+
+        Thread[] borrowers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int borrower = i;
+            borrowers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        borrowed[borrower] = image.borrowConversion(ColorSpace.HSV);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            borrowers[i].start();
+        }
+        start.countDown();
+        for (Thread borrower : borrowers)
+            borrower.join();
+
+        for (Mat hsv : borrowed)
+            Assert.assertThat("Threads converting at once must all borrow the same conversion.",
+                    hsv, sameInstance(borrowed[0]));
+        Assert.assertThat("A conversion made by threads at once must be cached once.",
+                ConversionCache.cachedBytes() - cachedBefore, is(borrowed[0].total() * borrowed[0].elemSize()));
+
+        for (int i = 0; i < threads; i++)
+            image.returnConversion(ColorSpace.HSV);
+        image.release();
+        Assert.assertThat("Releasing the image must forget its conversion.",
+                ConversionCache.cachedBytes(), is(cachedBefore));
+    }
 }
@@ -0,0 +1,82 @@
+package test.ddpsc.phenocv.computer_vision_test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import src.ddpsc.phenocv.computer_vision.*;
+import src.ddpsc.phenocv.utility.OpenCV;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * @author cjmcentee
+ */
+public class ConnectedComponentsTest {
+
+    static {
+        OpenCV.load();
+    }
+
+    @Test
+    public void TestMaskOfAllComponents() {
+        GrayImage shapesImage = new GrayImage(TestFiles.SUBSHAPES);
+        shapesImage.threshold();
+
+        ConnectedComponents components = ConnectedComponents.FromImage(shapesImage);
+        GrayImage mask = components.maskOf(components.components());
+
+        Assert.assertArrayEquals("Masking with every component must give back the labeled mask.",
+                shapesImage.pixels(), mask.pixels());
+
+        int numberPixels = 0;
+        for (Component component : components.components())
+            numberPixels += component.numberPixels();
+
+        Assert.assertThat("Components must account for every non-black pixel.",
+                numberPixels, equalTo(mask.numberPixels() - countBlack(mask.pixels())));
+    }
+
+    @Test
+    public void TestSameComponentsAsShapes() {
+        GrayImage shapesImage = new GrayImage(TestFiles.SUBSHAPES);
+        shapesImage.threshold();
+
+        ConnectedComponents components = ConnectedComponents.FromImage(shapesImage);
+        ShapeCollection shapes = ShapeCollection.FromImage((GrayImage) shapesImage.copy());
+
+        Assert.assertThat("Must find one component per shape.",
+                components.components().size(), equalTo(shapes.shapes().size()));
+    }
+
+    @Test
+    public void TestComponentStatistics() {
+        GrayImage shapeImage = new GrayImage(TestFiles.SHAPE);
+        shapeImage.threshold();
+        ColorImage gradient = new ColorImage(TestFiles.GRADIENT);
+
+        ConnectedComponents components = ConnectedComponents.FromImage(shapeImage, gradient);
+        ShapeCollection shapes = ShapeCollection.FromImage((GrayImage) shapeImage.copy());
+        Component component = components.components().get(0); // only 1 shape in SHAPE
+        Shape shape = shapes.shapes().get(0);
+
+        Assert.assertThat("Bounding box must match the shape's.",
+                component.boundingBox(), equalTo(shape.boundingBox()));
+        Assert.assertThat("Average color must match the shape's.",
+                component.averagePixel().toString(), equalTo(shape.averagePixelOf(gradient).toString()));
+
+        List<Component> none = new ArrayList<Component>();
+        GrayImage emptyMask = components.maskOf(none);
+        Assert.assertThat("Masking with no components must block every pixel.",
+                countBlack(emptyMask.pixels()), equalTo(emptyMask.numberPixels()));
+    }
+
+    private static int countBlack(byte pixels[]) {
+        int black = 0;
+        for (byte pixel : pixels)
+            if (pixel == 0)
+                black++;
+        return black;
+    }
+}
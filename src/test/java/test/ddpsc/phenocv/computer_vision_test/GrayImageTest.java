@@ -3,6 +3,8 @@ package test.ddpsc.phenocv.computer_vision_test;
 import org.junit.Assert;
 import org.junit.Test;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import src.ddpsc.phenocv.computer_vision.GrayImage;
 import src.ddpsc.phenocv.utility.OpenCV;
 
@@ -49,6 +51,21 @@ public class GrayImageTest {
                 gradient, not(sameInstance(copy)));
     }
 
+    @Test
+    public void TestCrop() {
+        GrayImage gradient = new GrayImage(TestFiles.TINY_TEST);
+        GrayImage cropped = (GrayImage) gradient.crop(new Rect(1, 2, 3, 2));
+
+        byte expectedPixels[] = new byte[] {
+                (byte)140, (byte) 94, (byte) 47,
+                (byte) 57, (byte) 38, (byte) 19};
+
+        Assert.assertThat("Crop must be the size of the region.",
+                cropped.size(), equalTo(new Size(3, 2)));
+        Assert.assertArrayEquals("Crop must keep the pixel values of the region.",
+                expectedPixels, cropped.pixels());
+    }
+
     @Test
     public void TestAsGrayMatrix() {
         GrayImage image = new GrayImage(TestFiles.TINY_TEST);
@@ -1,13 +1,19 @@
 package test.ddpsc.phenocv.computer_vision_test;
 
+import org.junit.Assert;
 import org.junit.Test;
 import src.ddpsc.phenocv.computer_vision.HistogramPartition;
 import src.ddpsc.phenocv.computer_vision.ColorSpace;
 import src.ddpsc.phenocv.computer_vision.ColorImage;
 import src.ddpsc.phenocv.computer_vision.GrayImage;
 import src.ddpsc.phenocv.computer_vision.Histogram;
+import src.ddpsc.phenocv.computer_vision.HistogramLookupTable;
 import src.ddpsc.phenocv.utility.OpenCV;
 
+import java.io.*;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+
 /**
  * Untested:
  *      Histogram#blank
@@ -72,6 +78,56 @@ public class HistogramTest {
                 + "back_project_smoothed_histogram_grad_onto_grad_isolation.png");
     }
 
+    @Test
+    public void TestLookupTableMatchesBackProjection() {
+        ColorImage spotGradient = new ColorImage(TestFiles.GRADIENT_GREENSPOT);
+        ColorImage gradient = new ColorImage(TestFiles.GRADIENT);
+        HistogramPartition hsv = new HistogramPartition(ColorSpace.HSV, 100);
+
+        for (HistogramPartition partition : new HistogramPartition[] {BGR, hsv}) {
+            Histogram spotHistogram = Histogram.fromImage(partition, spotGradient);
+            HistogramLookupTable table = spotHistogram.lookupTable();
+
+            GrayImage backProjection = spotHistogram.backProjectionOf(gradient);
+            backProjection.threshold();
+            GrayImage tableMask = table.maskOf(gradient);
+
+            Assert.assertArrayEquals("Lookup table mask must match the thresholded back projection.",
+                    backProjection.pixels(), tableMask.pixels());
+
+            backProjection.release();
+            tableMask.release();
+            spotHistogram.release();
+        }
+    }
+
+    @Test
+    public void TestSaveLoad() throws IOException {
+        ColorImage spotGradient = new ColorImage(TestFiles.GRADIENT_GREENSPOT);
+        HistogramPartition hsv = new HistogramPartition(ColorSpace.HSV, 100);
+        Histogram histogram = Histogram.fromImage(hsv, spotGradient);
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        histogram.save(new DataOutputStream(saved));
+        Histogram loaded = Histogram.load(new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+
+        GrayImage backProjection = histogram.backProjectionOf(new ColorImage(TestFiles.GRADIENT_GREENSPOT));
+        GrayImage loadedBackProjection = loaded.backProjectionOf(new ColorImage(TestFiles.GRADIENT_GREENSPOT));
+
+        Assert.assertThat("Back projection must cover the image.",
+                backProjection.numberPixels(), equalTo(spotGradient.numberPixels()));
+        Assert.assertArrayEquals("Loaded histogram must back project the same as the saved one.",
+                backProjection.pixels(), loadedBackProjection.pixels());
+
+        ByteArrayOutputStream resaved = new ByteArrayOutputStream();
+        loaded.save(new DataOutputStream(resaved));
+        Assert.assertArrayEquals("Saving a loaded histogram must write the same bins.",
+                saved.toByteArray(), resaved.toByteArray());
+
+        histogram.release();
+        loaded.release();
+    }
+
     @Test
     public void TestInputImageBackProjectionDensity() {
         // Back project both gradients onto both images (4 back projections)
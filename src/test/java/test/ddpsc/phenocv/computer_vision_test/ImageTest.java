@@ -1,10 +1,16 @@
 package test.ddpsc.phenocv.computer_vision_test;
 
+import org.junit.Assert;
 import org.junit.Test;
 import src.ddpsc.phenocv.computer_vision.ColorImage;
+import src.ddpsc.phenocv.computer_vision.ColorPixel;
 import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.computer_vision.ImageFormat;
+import src.ddpsc.phenocv.computer_vision.PixelRows;
 import src.ddpsc.phenocv.utility.OpenCV;
 
+import static org.hamcrest.CoreMatchers.is;
+
 /**
  * Untested:
  *      Image#maskWith(Shape)
@@ -41,4 +47,65 @@ public class ImageTest {
         image.writeTo(TestFiles.TEST_RESULT_ROOT + NAME_PREFIX + "maskWith(Mask)_mask_application_results.png");
     }
 
+    @Test
+    public void TestMaskWithMaskInPlace() {
+        ColorImage image = new ColorImage(2, 2, ColorPixel.fromInt(10, 20, 30));
+        GrayImage mask = GrayImage.maskBlockAll(image.size());
+        mask.setPixels(new byte[] {(byte) 255, 0, (byte) 128, 0}, 2);
+
+        image.maskWith(mask);
+
+        Assert.assertArrayEquals("Any non-black mask pixel shows the image, black ones block it.",
+                new byte[] {10, 20, 30, 0, 0, 0, 10, 20, 30, 0, 0, 0}, image.pixels());
+
+        image.release();
+        mask.release();
+    }
+
+    @Test
+    public void TestEncodeWithFormat() {
+        ColorImage gradient = new ColorImage(TestFiles.TINY_TEST);
+
+        ColorImage pngRoundTrip = ColorImage.decode(gradient.encode(ImageFormat.parse("png:9")));
+        Assert.assertArrayEquals("PNG at any compression level must keep pixels exactly.",
+                gradient.pixels(), pngRoundTrip.pixels());
+
+        byte worst[] = gradient.encode(ImageFormat.jpeg(0));
+        byte best[] = gradient.encode(ImageFormat.jpeg(100));
+        Assert.assertThat("Lower JPEG quality must make smaller files.",
+                worst.length < best.length, is(true));
+
+        gradient.release();
+        pngRoundTrip.release();
+    }
+
+    @Test
+    public void TestPixelRows() {
+        ColorImage gradient = new ColorImage(TestFiles.TINY_TEST);
+        byte pixels[] = gradient.pixels();
+
+        PixelRows rows = gradient.pixelRows();
+        byte scanned[] = new byte[pixels.length];
+        int rowLength = gradient.width() * 3;
+        while (rows.next())
+            System.arraycopy(rows.row(), 0, scanned, rows.index() * rowLength, rowLength);
+
+        Assert.assertArrayEquals("Reading every row must give the same pixels as copying them.",
+                pixels, scanned);
+
+        PixelRows stale = gradient.pixelRows();
+        gradient.setPixels(pixels, gradient.width());
+        try {
+            stale.next();
+            Assert.fail("Reading rows of pixels that were since set must fail.");
+        }
+        catch (IllegalStateException expected) {}
+
+        gradient.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void TestFormatOutOfRange() {
+        ImageFormat.parse("png:10");
+    }
 }
@@ -0,0 +1,60 @@
+package test.ddpsc.phenocv.computer_vision_test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Size;
+import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.computer_vision.LeakTracker;
+import src.ddpsc.phenocv.computer_vision.Shape;
+import src.ddpsc.phenocv.computer_vision.ShapeCollection;
+import src.ddpsc.phenocv.utility.OpenCV;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class LeakTrackerTest {
+
+    // Load openCV native library
+    static {
+        OpenCV.load();
+        LeakTracker.enable();
+    }
+
+    @Test
+    public void TestLiveImages() {
+        GrayImage mask = GrayImage.maskShowAll(new Size(10, 20));
+        Assert.assertThat("A live image must be tracked with its pixels' bytes.",
+                LeakTracker.trackedBytes(mask), is(10L * 20));
+        Assert.assertThat("Live images must be reported by where they were made.",
+                LeakTracker.report().contains("LeakTrackerTest.TestLiveImages"), is(true));
+
+        mask.setPixels(new byte[5 * 4], 5);
+        Assert.assertThat("Setting the pixels must track their new size.",
+                LeakTracker.trackedBytes(mask), is(5L * 4));
+
+        mask.release();
+        Assert.assertThat("A released image must no longer be tracked.",
+                LeakTracker.trackedBytes(mask), is(-1L));
+    }
+
+    @Test
+    public void TestReleaseShapes() {
+        GrayImage mask = GrayImage.maskShowAll(new Size(8, 8));
+        ShapeCollection shapes = ShapeCollection.FromImage(mask);
+        List<Shape> shapeList = new ArrayList<Shape>(shapes.shapes());
+        Assert.assertThat("A live shape must be tracked.",
+                LeakTracker.trackedBytes(shapeList.get(0)) > 0, is(true));
+
+        shapeList.get(0).perimeter(); // makes the float contour a release has to free
+
+        shapes.release();
+        mask.release();
+        for (Shape shape : shapeList)
+            Assert.assertThat("Releasing a collection must release its shapes.",
+                    LeakTracker.trackedBytes(shape), is(-1L));
+        Assert.assertThat("A released collection must no longer be tracked.",
+                LeakTracker.trackedBytes(shapes), is(-1L));
+    }
+}
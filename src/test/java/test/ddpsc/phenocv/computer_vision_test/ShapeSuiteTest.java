@@ -1,11 +1,16 @@
 package test.ddpsc.phenocv.computer_vision_test;
 
+import org.junit.Assert;
 import org.junit.Test;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import src.ddpsc.phenocv.computer_vision.*;
 import src.ddpsc.phenocv.utility.OpenCV;
 
 import java.util.List;
 
+import static org.hamcrest.CoreMatchers.equalTo;
+
 /**
  * @author cjmcentee
  */
@@ -23,6 +28,64 @@ public class ShapeSuiteTest {
         shapes.writeTo(TestFiles.TEST_RESULT_ROOT + "simple_shape_tight_bounds.png");
     }
 
+    @Test
+    public void TestFromRegionToGeoJSON() {
+        GrayImage mask = squareWithHole();
+        byte pixels[] = mask.pixels();
+
+        ShapeCollection shapes = ShapeCollection.FromRegion(mask, new Rect(0, 0, 5, 5));
+
+        Assert.assertThat("Shapes on the mask's edge must keep their edge pixels.",
+                shapes.toGeoJSON(), equalTo("{\"type\":\"FeatureCollection\",\"features\":[" +
+                        "{\"type\":\"Feature\",\"id\":0,\"properties\":{},\"geometry\":{\"type\":\"Polygon\",\"coordinates\":" +
+                        "[[[0,0],[0,4],[4,4],[4,0],[0,0]],[[1,2],[2,1],[3,2],[2,3],[1,2]]]}}]}"));
+        Assert.assertArrayEquals("Finding shapes in a region must leave the mask alone.",
+                pixels, mask.pixels());
+    }
+
+    @Test
+    public void TestMorphology() {
+        ShapeCollection shapes = ShapeCollection.FromRegion(squareWithHole(), new Rect(0, 0, 5, 5));
+        Shape square = shapes.shapes().get(0);
+
+        Assert.assertEquals("The hole's pixel is not part of the shape.", 24, square.numberPixels());
+        Assert.assertEquals("The hole's area is taken from the outline's.", 14, square.area(), 1e-9);
+        Assert.assertEquals(16, square.convexHullArea(), 1e-9);
+        Assert.assertEquals(14 / 16.0, square.solidity(), 1e-9);
+    }
+
+    @Test
+    public void TestColorStatistics() {
+        // Green everywhere but a red pixel in the square's hole
+        ColorImage image = new ColorImage(8, 8, ColorPixel.fromInt(0, 255, 0));
+        byte pixels[] = image.pixels();
+        pixels[3 * (8 * 2 + 2)] = 0;
+        pixels[3 * (8 * 2 + 2) + 1] = 0;
+        pixels[3 * (8 * 2 + 2) + 2] = (byte) 255;
+        image.setPixels(pixels, 8);
+
+        ShapeCollection shapes = ShapeCollection.FromRegion(squareWithHole(), new Rect(0, 0, 5, 5));
+        ColorStatistics color = shapes.shapes().get(0).colorStatisticsOf(image);
+
+        Assert.assertEquals("The hole's pixel is not part of the shape.", 24, color.numberPixels());
+        Assert.assertEquals(0, color.meanRed(), 1e-9);
+        Assert.assertEquals(2, color.excessGreen(), 1e-9);
+        Assert.assertEquals("Pure green has a hue of 120 degrees.",
+                1, color.hueFraction(120 / ColorStatistics.HUE_BIN_DEGREES), 1e-9);
+    }
+
+    // A square touching the top left corner of an 8x8 mask, with a one pixel hole
+    private static GrayImage squareWithHole() {
+        GrayImage mask = GrayImage.maskBlockAll(new Size(8, 8));
+        byte pixels[] = mask.pixels();
+        for (int row = 0; row < 5; row++)
+            for (int column = 0; column < 5; column++)
+                pixels[8 * row + column] = (byte) 255;
+        pixels[8 * 2 + 2] = 0;
+        mask.setPixels(pixels, 8);
+        return mask;
+    }
+
     @Test
     public void TestShapesDraw() {
         GrayImage shapesImage = new GrayImage(TestFiles.SUBSHAPES);
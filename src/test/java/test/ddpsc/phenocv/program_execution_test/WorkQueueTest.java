@@ -0,0 +1,120 @@
+package test.ddpsc.phenocv.program_execution_test;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import src.ddpsc.phenocv.program_execution.WorkQueue;
+import src.ddpsc.phenocv.program_execution.WorkQueue.Claim;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Two WorkQueues on one directory stand in for two processes sharing a batch.
+ */
+public class WorkQueueTest {
+
+    private static final String IMAGE = "plants/plant_1.png";
+    private static final long LONG_LEASE_MILLIS = 60000;
+    private static final long EXPIRED_LEASE_MILLIS = 0;
+
+    @Rule
+    public TemporaryFolder queueDirectory = new TemporaryFolder();
+
+    @Test
+    public void TestClaimedOnce() throws IOException {
+        WorkQueue first = queue(LONG_LEASE_MILLIS);
+        WorkQueue second = queue(LONG_LEASE_MILLIS);
+
+        Assert.assertThat("The first claim of an image must get it.",
+                first.claim(IMAGE), is(Claim.CLAIMED));
+        Assert.assertThat("An image claimed by another process must be leased to it.",
+                second.claim(IMAGE), is(Claim.LEASED));
+        Assert.assertThat("A claim must be attempt 1.", attempt(), is(1));
+    }
+
+    @Test
+    public void TestExpiredLeaseReclaimed() throws IOException {
+        WorkQueue first = queue(EXPIRED_LEASE_MILLIS);
+        WorkQueue second = queue(LONG_LEASE_MILLIS);
+
+        first.claim(IMAGE);
+        Assert.assertThat("An image whose lease ran out must be claimed again.",
+                second.claim(IMAGE), is(Claim.CLAIMED));
+        Assert.assertThat("Claiming an image again must count another attempt.", attempt(), is(2));
+        Assert.assertThat("A lease taken over must be held by its new process.",
+                first.claim(IMAGE), is(Claim.LEASED));
+    }
+
+    @Test
+    public void TestAttemptOfDeadReclaimerCounted() throws IOException {
+        WorkQueue first = queue(EXPIRED_LEASE_MILLIS);
+        WorkQueue second = queue(LONG_LEASE_MILLIS);
+
+        first.claim(IMAGE);
+        // A process that died between reserving attempt 2 and putting its lease in place
+        Files.write(marker(".reclaim.2").toPath(), "dead\t2\t0".getBytes(Charset.forName("UTF-8")));
+
+        Assert.assertThat("An image whose reclaimer died must be claimed again.",
+                second.claim(IMAGE), is(Claim.CLAIMED));
+        Assert.assertThat("The reclaim that died must count as an attempt.", attempt(), is(3));
+    }
+
+    @Test
+    public void TestFailedAfterMaxAttempts() throws IOException {
+        WorkQueue first = queue(EXPIRED_LEASE_MILLIS);
+        WorkQueue second = queue(EXPIRED_LEASE_MILLIS);
+
+        for (int attempt = 1; attempt <= WorkQueue.MAX_ATTEMPTS; attempt++)
+            Assert.assertThat("An image must be claimed up to MAX_ATTEMPTS times.",
+                    (attempt % 2 == 1 ? first : second).claim(IMAGE), is(Claim.CLAIMED));
+
+        Assert.assertThat("An image must be given up on after MAX_ATTEMPTS claims.",
+                first.claim(IMAGE), is(Claim.FINISHED));
+        Assert.assertThat("An image given up on must be marked failed.",
+                marker(".failed").exists(), is(true));
+        Assert.assertThat("An image marked failed must not be claimed again.",
+                second.claim(IMAGE), is(Claim.FINISHED));
+    }
+
+    @Test
+    public void TestCompletedFinished() throws IOException {
+        WorkQueue first = queue(LONG_LEASE_MILLIS);
+        WorkQueue second = queue(LONG_LEASE_MILLIS);
+
+        first.claim(IMAGE);
+        first.complete(IMAGE);
+        Assert.assertThat("A completed image must be marked done.",
+                marker(".done").exists(), is(true));
+        Assert.assertThat("Completing an image must give up its lease.",
+                marker(".lease").exists(), is(false));
+        Assert.assertThat("A completed image must not be claimed again.",
+                second.claim(IMAGE), is(Claim.FINISHED));
+        Assert.assertThat("A completed image must not be claimed again by its own process.",
+                first.claim(IMAGE), is(Claim.FINISHED));
+    }
+
+
+    /// ======================================================================
+    /// Helper Methods
+    /// ======================================================================
+
+    private WorkQueue queue(long leaseMillis) throws IOException {
+        return new WorkQueue(queueDirectory.getRoot().getPath(), leaseMillis);
+    }
+
+    private File marker(String extension) {
+        return new File(queueDirectory.getRoot(), "plants/plant_1" + extension);
+    }
+
+    // Lease files hold the owner, the attempt and when the lease runs out, separated by tabs
+    private int attempt() throws IOException {
+        String lease = new String(Files.readAllBytes(marker(".lease").toPath()), Charset.forName("UTF-8"));
+        return Integer.parseInt(lease.trim().split("\t")[1]);
+    }
+}
@@ -0,0 +1,55 @@
+package test.ddpsc.phenocv.utility_test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import src.ddpsc.phenocv.computer_vision.GrayImage;
+import src.ddpsc.phenocv.utility.OpenCV;
+import src.ddpsc.phenocv.utility.ReleaseScope;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class ReleaseScopeTest {
+
+    // Load openCV native library
+    static {
+        OpenCV.load();
+    }
+
+    @Test
+    public void TestReleasedOnClose() {
+        Mat temporary;
+        Mat kept;
+        GrayImage mask;
+
+        try (ReleaseScope scope = new ReleaseScope()) {
+            temporary = scope.add(new Mat(4, 4, CvType.CV_8UC1));
+            kept = scope.keep(scope.add(new Mat(4, 4, CvType.CV_8UC1)));
+            mask = scope.add(GrayImage.maskShowAll(kept.size()));
+        }
+
+        Assert.assertThat("Matrices added to a scope must be released when it closes.",
+                temporary.empty(), is(true));
+        Assert.assertThat("Releasables added to a scope must be released when it closes.",
+                mask.numberPixels(), is(0));
+        Assert.assertThat("Matrices kept out of a scope must not be released when it closes.",
+                kept.empty(), is(false));
+
+        kept.release();
+    }
+
+    @Test
+    public void TestReleasedOnThrow() {
+        Mat temporary = null;
+
+        try (ReleaseScope scope = new ReleaseScope()) {
+            temporary = scope.add(new Mat(4, 4, CvType.CV_8UC1));
+            throw new IllegalStateException();
+        }
+        catch (IllegalStateException expected) {}
+
+        Assert.assertThat("Matrices added to a scope must be released even if its block throws.",
+                temporary.empty(), is(true));
+    }
+}
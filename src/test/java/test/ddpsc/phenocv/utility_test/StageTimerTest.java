@@ -0,0 +1,79 @@
+package test.ddpsc.phenocv.utility_test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import src.ddpsc.phenocv.utility.LatencyHistogram;
+import src.ddpsc.phenocv.utility.StageTimer;
+import src.ddpsc.phenocv.utility.StageTimer.Stage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+
+public class StageTimerTest {
+
+    private static final double BUCKET_ERROR = 1.0 / 16;
+
+    @Test
+    public void TestPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanoseconds = 1; nanoseconds <= 100000; nanoseconds++)
+            histogram.record(nanoseconds * 1000);
+
+        Assert.assertThat(histogram.count(), equalTo(100000L));
+        Assert.assertThat(histogram.max(), equalTo(100000L * 1000));
+
+        assertWithinBucket("p50", 50000L * 1000, histogram.valueAt(0.50));
+        assertWithinBucket("p90", 90000L * 1000, histogram.valueAt(0.90));
+        assertWithinBucket("p99", 99000L * 1000, histogram.valueAt(0.99));
+        Assert.assertThat("Percentiles can't exceed the longest duration.",
+                histogram.valueAt(1.0) <= histogram.max(), is(true));
+    }
+
+    @Test
+    public void TestSmallAndEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertThat(histogram.valueAt(0.5), equalTo(0L));
+
+        histogram.record(3);
+        histogram.record(-5); // clock went backwards, counted as 0
+        Assert.assertThat(histogram.count(), equalTo(2L));
+        Assert.assertThat(histogram.valueAt(1.0), equalTo(3L));
+    }
+
+    @Test
+    public void TestRecordsFromManyThreads() throws InterruptedException {
+        final int threads = 8;
+        final int recordsPerThread = 10000;
+
+        StageTimer.reset();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int record = 0; record < recordsPerThread; record++)
+                        StageTimer.record(Stage.DECODE, StageTimer.start());
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        Assert.assertThat("Every thread's durations must be counted.",
+                StageTimer.histogramOf(Stage.DECODE).count(), equalTo((long) threads * recordsPerThread));
+        Assert.assertThat(StageTimer.readout().contains("decode"), is(true));
+
+        StageTimer.reset();
+        Assert.assertThat("Reset must forget earlier durations.",
+                StageTimer.histogramOf(Stage.DECODE).count(), equalTo(0L));
+    }
+
+    private static void assertWithinBucket(String name, long expected, long actual) {
+        Assert.assertThat(name + " must be within a bucket of " + expected + ", was " + actual,
+                Math.abs(actual - expected) <= expected * BUCKET_ERROR, is(true));
+    }
+}